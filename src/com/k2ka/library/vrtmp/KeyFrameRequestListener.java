@@ -0,0 +1,13 @@
+package com.k2ka.library.vrtmp;
+
+/**
+ * Optional callback of a {@link RTMPPublisherListener}: listeners that also
+ * implement this interface are asked for key frames when video frames had to
+ * be dropped (see {@link com.k2ka.library.vrtmp.io.DropPolicy})
+ *
+ * @author k2ka
+ */
+public interface KeyFrameRequestListener {
+    /** The encoder should produce a key frame as soon as possible */
+    void onKeyFrameRequest();
+}
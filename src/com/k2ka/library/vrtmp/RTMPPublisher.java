@@ -1,5 +1,12 @@
 package com.k2ka.library.vrtmp;
 
+import com.k2ka.library.vrtmp.io.DropPolicy;
+import com.k2ka.library.vrtmp.io.FlushPolicy;
+import com.k2ka.library.vrtmp.io.FrameBuffer;
+import com.k2ka.library.vrtmp.io.FrameBufferPool;
+import com.k2ka.library.vrtmp.io.SendStats;
+
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -7,6 +14,10 @@ import java.util.concurrent.ExecutorService;
  */
 public interface RTMPPublisher {
 
+    /** Values of the connect command's objectEncoding property */
+    int OBJECT_ENCODING_AMF0 = 0;
+    int OBJECT_ENCODING_AMF3 = 3;
+
     public enum Status {
         NEW,
         REPAIRING,
@@ -43,6 +54,51 @@ public interface RTMPPublisher {
     void Init(String rtmpUrl, ExecutorService taskHandler, RTMPPublisherListener listener, String streamName);
     void Release();
     void SetupMetaData(int height, int weight, int videoCodecID, int videoDataRate, int frameRate, int audioCodecID, int audioDataRate, int sampleRate, int channelCount, int audioConfig, byte[] SPS, byte[] PPS);
+    /**
+     * Sends an encoded frame. The frame bytes are not copied: the caller must
+     * not modify them until the frame has been written to the connection,
+     * which it is not told about, so the array must not be reused. Memory
+     * that is reused has to be sent with {@link #SendData(MediaType, FrameBuffer, long)},
+     * wrapped with {@link FrameBuffer#wrap(ByteBuffer, FrameBufferPool.ReleaseListener)}
+     * to be told when it is free again.
+     */
     void SendData(MediaType type, byte[] data, int length, long timestamp);
+    /** Like {@link #SendData(MediaType, byte[], int, long)}, with the same ownership rules */
+    void SendData(MediaType type, byte[] data, int offset, int length, long timestamp);
+    /**
+     * Sends the remaining bytes of the specified (heap or direct) buffer; its
+     * position is not modified. The bytes are not copied either, and the
+     * caller is not told when they have been written: buffers that go back
+     * to their owner (e.g. a hardware encoder's output buffers) must be sent
+     * wrapped with {@link FrameBuffer#wrap(ByteBuffer, FrameBufferPool.ReleaseListener)} instead.
+     */
+    void SendData(MediaType type, ByteBuffer data, long timestamp);
+    /**
+     * Sends a pooled frame. The publisher retains its own reference until the
+     * frame has been written; the caller still owns (and must release) the
+     * reference it acquired the frame with.
+     */
+    void SendData(MediaType type, FrameBuffer frame, long timestamp);
+    /** Sends a complete FLV tag body; like SendData, the bytes are referenced until written */
     void SendFLVTag(int type, byte[] data, int length, long timestamp);
+    /** Sets how media messages are coalesced into socket writes; see {@link FlushPolicy} */
+    void SetFlushPolicy(FlushPolicy flushPolicy);
+    /** Sets which video frames may be dropped when the connection falls behind; see {@link DropPolicy} */
+    void SetDropPolicy(DropPolicy dropPolicy);
+    /** @return the number of messages waiting to be written to the connection */
+    int GetQueuedFrames();
+    /** @return the number of media bytes waiting to be written to the connection */
+    long GetQueuedBytes();
+    /** Sets the outbound chunk size; sent to the server right away if connected */
+    void SetTxChunkSize(int chunkSize);
+    /** Lets the outbound chunk size follow the media message sizes */
+    void SetAutoTuneChunkSize(boolean autoTune);
+    /** Sets how often {@link SendStatsListener#onSendStats(SendStats)} is called; 0 stops the reports */
+    void SetStatsInterval(int intervalMs);
+    /** @return the stats of the last completed interval, or <code>null</code> if none has completed yet */
+    SendStats GetSendStats();
+    /** Lets the next connections send the publishing commands without waiting for each result */
+    void SetFastStart(boolean fastStart);
+    /** Sets the object encoding requested on connect, {@link #OBJECT_ENCODING_AMF0} or {@link #OBJECT_ENCODING_AMF3} */
+    void SetObjectEncoding(int objectEncoding);
 }
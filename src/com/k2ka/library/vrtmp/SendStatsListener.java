@@ -0,0 +1,18 @@
+package com.k2ka.library.vrtmp;
+
+import com.k2ka.library.vrtmp.io.SendStats;
+
+/**
+ * Optional callback of a {@link RTMPPublisherListener}: listeners that also
+ * implement this interface get the send path stats at the end of each stats
+ * interval; they can be polled with {@link RTMPPublisher#GetSendStats()} as well
+ *
+ * @author k2ka
+ */
+public interface SendStatsListener {
+    /**
+     * Called on the connection's event loop at the end of each stats interval
+     * with what the send path measured; meant for adaptive bitrate control
+     */
+    void onSendStats(SendStats stats);
+}
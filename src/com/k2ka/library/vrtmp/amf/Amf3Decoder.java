@@ -0,0 +1,204 @@
+package com.k2ka.library.vrtmp.amf;
+
+import com.k2ka.library.vrtmp.utils.BufferCodec;
+import com.k2ka.library.vrtmp.utils.Util;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes AMF3 values into the AMF0 data types of this package.
+ * 
+ * AMF3 refers back to strings, objects and traits sent earlier in the same
+ * context by their index; one decoder keeps those reference tables, so it
+ * must be used for a single context only, such as the AMF3 values of one
+ * message body, read in order. Typed objects decode as plain
+ * {@link AmfObject}s, arrays as {@link AmfArray}s or, if they have
+ * associative members, as {@link AmfMap}s. XML, byte arrays and
+ * externalizable objects are not supported.
+ *
+ * @author k2ka
+ */
+public class Amf3Decoder {
+
+    /** Class name and member names shared by the objects of one class */
+    private static final class Traits {
+
+        final boolean dynamic;
+        final String[] sealedMembers;
+
+        Traits(boolean dynamic, String[] sealedMembers) {
+            this.dynamic = dynamic;
+            this.sealedMembers = sealedMembers;
+        }
+    }
+
+    private final List<String> stringTable = new ArrayList<String>();
+    private final List<AmfData> objectTable = new ArrayList<AmfData>();
+    private final List<Traits> traitsTable = new ArrayList<Traits>();
+
+    /** Reads one AMF3 value, including its data type byte */
+    public AmfData readFrom(ByteBuffer in) throws IOException {
+        final byte amf3TypeByte = in.get();
+        final Amf3Type amf3Type = Amf3Type.valueOf(amf3TypeByte);
+        if (amf3Type == null) {
+            throw new IOException("Unknown AMF3 data type: " + Util.toHexString(amf3TypeByte));
+        }
+        switch (amf3Type) {
+            case UNDEFINED:
+            case NULL:
+                return new AmfNull();
+            case FALSE:
+                return new AmfBoolean(false);
+            case TRUE:
+                return new AmfBoolean(true);
+            case INTEGER:
+                // Sign-extend the 29-bit value
+                return new AmfNumber((readUnsignedInt29(in) << 3) >> 3);
+            case DOUBLE:
+                return new AmfNumber(BufferCodec.readDouble(in));
+            case STRING:
+                return new AmfString(readString(in), false);
+            case DATE:
+                return readDate(in);
+            case ARRAY:
+                return readArray(in);
+            case OBJECT:
+                return readObject(in);
+            default:
+                throw new IOException("Unsupported AMF3 data type: " + amf3Type);
+        }
+    }
+
+    /** Reads a variable length unsigned 29-bit integer (1 to 4 bytes) */
+    public static int readUnsignedInt29(ByteBuffer in) {
+        int value = 0;
+        for (int i = 0; i < 3; i++) {
+            final int b = in.get() & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        // The fourth byte contributes all of its 8 bits
+        return (value << 8) | (in.get() & 0xff);
+    }
+
+    private String readString(ByteBuffer in) throws IOException {
+        final int reference = readUnsignedInt29(in);
+        if ((reference & 1) == 0) {
+            return lookUp(stringTable, reference >> 1);
+        }
+        final int length = reference >> 1;
+        if (length == 0) {
+            // The empty string is never sent by reference
+            return "";
+        }
+        if (length > in.remaining()) {
+            throw new IOException("AMF3 string truncated: " + length + " bytes expected, " + in.remaining() + " left");
+        }
+        final String string;
+        if (in.hasArray()) {
+            string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        stringTable.add(string);
+        return string;
+    }
+
+    /** Decodes a date as its number of milliseconds since the epoch */
+    private AmfData readDate(ByteBuffer in) throws IOException {
+        final int reference = readUnsignedInt29(in);
+        if ((reference & 1) == 0) {
+            return lookUp(objectTable, reference >> 1);
+        }
+        final AmfNumber date = new AmfNumber(BufferCodec.readDouble(in));
+        objectTable.add(date);
+        return date;
+    }
+
+    private AmfData readArray(ByteBuffer in) throws IOException {
+        final int reference = readUnsignedInt29(in);
+        if ((reference & 1) == 0) {
+            return lookUp(objectTable, reference >> 1);
+        }
+        final int denseLength = reference >> 1;
+        // Every item takes at least one byte, which bounds a corrupt length
+        if (denseLength > in.remaining()) {
+            throw new IOException("Invalid AMF3 array length: " + denseLength);
+        }
+        String key = readString(in);
+        if (key.length() == 0) {
+            // No associative part: a strict array
+            final AmfArray array = new AmfArray();
+            objectTable.add(array);
+            final List<AmfData> items = array.getItems();
+            for (int i = 0; i < denseLength; i++) {
+                items.add(readFrom(in));
+            }
+            return array;
+        }
+        final AmfMap map = new AmfMap();
+        objectTable.add(map);
+        do {
+            map.setProperty(key, readFrom(in));
+            key = readString(in);
+        } while (key.length() != 0);
+        for (int i = 0; i < denseLength; i++) {
+            map.setProperty(String.valueOf(i), readFrom(in));
+        }
+        return map;
+    }
+
+    private AmfData readObject(ByteBuffer in) throws IOException {
+        final int reference = readUnsignedInt29(in);
+        if ((reference & 1) == 0) {
+            return lookUp(objectTable, reference >> 1);
+        }
+        final Traits traits;
+        if ((reference & 2) == 0) {
+            traits = lookUp(traitsTable, reference >> 2);
+        } else if ((reference & 4) != 0) {
+            throw new IOException("Externalizable AMF3 objects are not supported");
+        } else {
+            final boolean dynamic = (reference & 8) != 0;
+            final int sealedCount = reference >> 4;
+            if (sealedCount > in.remaining()) {
+                throw new IOException("Invalid AMF3 sealed member count: " + sealedCount);
+            }
+            readString(in); // Class name, which is not kept
+            final String[] sealedMembers = new String[sealedCount];
+            for (int i = 0; i < sealedCount; i++) {
+                sealedMembers[i] = readString(in);
+            }
+            traits = new Traits(dynamic, sealedMembers);
+            traitsTable.add(traits);
+        }
+        final AmfObject object = new AmfObject();
+        objectTable.add(object);
+        for (String member : traits.sealedMembers) {
+            object.setProperty(member, readFrom(in));
+        }
+        if (traits.dynamic) {
+            String key = readString(in);
+            while (key.length() != 0) {
+                object.setProperty(key, readFrom(in));
+                key = readString(in);
+            }
+        }
+        return object;
+    }
+
+    private static <T> T lookUp(List<T> table, int index) throws IOException {
+        if (index >= table.size()) {
+            throw new IOException("Invalid AMF3 reference: " + index + " (" + table.size() + " entries)");
+        }
+        return table.get(index);
+    }
+}
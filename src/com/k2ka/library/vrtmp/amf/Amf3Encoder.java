@@ -0,0 +1,176 @@
+package com.k2ka.library.vrtmp.amf;
+
+import com.k2ka.library.vrtmp.utils.BufferCodec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes the AMF0 data types of this package as AMF3 values.
+ * 
+ * Strings, objects and object traits that were already written by this
+ * encoder are written as references to them: objects sharing the same
+ * keys, such as the samples of timed data, only send their key names once.
+ * Objects are written as anonymous sealed objects, {@link AmfMap}s as
+ * associative arrays and {@link AmfArray}s as dense arrays. One encoder
+ * covers a single context, such as the AMF3 values of one message body.
+ *
+ * @author k2ka
+ */
+public class Amf3Encoder {
+
+    /** Range of the AMF3 integer type (signed 29-bit) */
+    private static final int MIN_INTEGER = -(1 << 28);
+    private static final int MAX_INTEGER = (1 << 28) - 1;
+
+    private final OutputStream out;
+    /** Scratch space for encoding doubles */
+    private final byte[] doubleBytes = new byte[8];
+    private final Map<String, Integer> stringTable = new HashMap<String, Integer>();
+    private final Map<AmfData, Integer> objectTable = new IdentityHashMap<AmfData, Integer>();
+    private final Map<List<String>, Integer> traitsTable = new HashMap<List<String>, Integer>();
+
+    public Amf3Encoder(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Writes one AMF3 value, including its data type byte */
+    public void writeValue(AmfData value) throws IOException {
+        if (value == null || value instanceof AmfNull) {
+            out.write(Amf3Type.NULL.getValue());
+        } else if (value instanceof AmfBoolean) {
+            out.write((((AmfBoolean) value).isValue() ? Amf3Type.TRUE : Amf3Type.FALSE).getValue());
+        } else if (value instanceof AmfNumber) {
+            writeNumber(((AmfNumber) value).getValue());
+        } else if (value instanceof AmfString) {
+            out.write(Amf3Type.STRING.getValue());
+            writeString(((AmfString) value).getValue());
+        } else if (value instanceof AmfMap) {
+            writeMap((AmfMap) value);
+        } else if (value instanceof AmfObject) {
+            writeObject((AmfObject) value);
+        } else if (value instanceof AmfArray) {
+            writeArray((AmfArray) value);
+        } else {
+            throw new IOException("Unsupported AMF data type for AMF3: " + value.getClass().getSimpleName());
+        }
+    }
+
+    /** Writes a variable length unsigned 29-bit integer (1 to 4 bytes) */
+    public static void writeUnsignedInt29(OutputStream out, int value) throws IOException {
+        value &= 0x1fffffff;
+        if (value < 0x80) {
+            out.write(value);
+        } else if (value < 0x4000) {
+            out.write((value >> 7) | 0x80);
+            out.write(value & 0x7f);
+        } else if (value < 0x200000) {
+            out.write((value >> 14) | 0x80);
+            out.write(((value >> 7) & 0x7f) | 0x80);
+            out.write(value & 0x7f);
+        } else {
+            // The fourth byte carries all of its 8 bits
+            out.write((value >> 22) | 0x80);
+            out.write(((value >> 15) & 0x7f) | 0x80);
+            out.write(((value >> 8) & 0x7f) | 0x80);
+            out.write(value & 0xff);
+        }
+    }
+
+    private void writeNumber(double number) throws IOException {
+        final int integer = (int) number;
+        // Negative zero has to stay a double
+        if (integer == number && integer >= MIN_INTEGER && integer <= MAX_INTEGER && (integer != 0 || Double.doubleToRawLongBits(number) == 0)) {
+            out.write(Amf3Type.INTEGER.getValue());
+            writeUnsignedInt29(out, integer);
+        } else {
+            out.write(Amf3Type.DOUBLE.getValue());
+            BufferCodec.writeDouble(doubleBytes, 0, number);
+            out.write(doubleBytes);
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        if (string.length() == 0) {
+            // The empty string is never sent by reference
+            writeUnsignedInt29(out, 1);
+            return;
+        }
+        final Integer reference = stringTable.get(string);
+        if (reference != null) {
+            writeUnsignedInt29(out, reference << 1);
+            return;
+        }
+        stringTable.put(string, stringTable.size());
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeUnsignedInt29(out, (bytes.length << 1) | 1);
+        out.write(bytes);
+    }
+
+    /** @return whether the value was already written, in which case a reference to it was written */
+    private boolean writeObjectReference(AmfData value) throws IOException {
+        final Integer reference = objectTable.get(value);
+        if (reference != null) {
+            writeUnsignedInt29(out, reference << 1);
+            return true;
+        }
+        objectTable.put(value, objectTable.size());
+        return false;
+    }
+
+    private void writeObject(AmfObject object) throws IOException {
+        out.write(Amf3Type.OBJECT.getValue());
+        if (writeObjectReference(object)) {
+            return;
+        }
+        object.decodeProperties();
+        final List<String> keys = new ArrayList<String>(object.properties.keySet());
+        final Integer traitsReference = traitsTable.get(keys);
+        if (traitsReference != null) {
+            writeUnsignedInt29(out, (traitsReference << 2) | 0x01);
+        } else {
+            traitsTable.put(keys, traitsTable.size());
+            // Inline object with inline traits, neither externalizable nor dynamic
+            writeUnsignedInt29(out, (keys.size() << 4) | 0x03);
+            writeString(""); // Anonymous class
+            for (String key : keys) {
+                writeString(key);
+            }
+        }
+        for (AmfData value : object.properties.values()) {
+            writeValue(value);
+        }
+    }
+
+    private void writeMap(AmfMap map) throws IOException {
+        out.write(Amf3Type.ARRAY.getValue());
+        if (writeObjectReference(map)) {
+            return;
+        }
+        map.decodeProperties();
+        writeUnsignedInt29(out, 1); // No dense part
+        for (Map.Entry<String, AmfData> entry : map.properties.entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+        writeString(""); // End of the associative part
+    }
+
+    private void writeArray(AmfArray array) throws IOException {
+        out.write(Amf3Type.ARRAY.getValue());
+        if (writeObjectReference(array)) {
+            return;
+        }
+        final List<AmfData> items = array.getItems();
+        writeUnsignedInt29(out, (items.size() << 1) | 1);
+        writeString(""); // No associative part
+        for (AmfData item : items) {
+            writeValue(item);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.k2ka.library.vrtmp.amf;
+
+/**
+ * AMF3 data types, as written in the type marker byte of each AMF3 value
+ *
+ * @author k2ka
+ */
+public enum Amf3Type {
+
+    UNDEFINED(0x00),
+    NULL(0x01),
+    FALSE(0x02),
+    TRUE(0x03),
+    /** Integer (encoded as a signed 29-bit variable length integer) */
+    INTEGER(0x04),
+    /** Double (encoded as IEEE 64-bit double precision floating point number) */
+    DOUBLE(0x05),
+    /** String (UTF-8 encoded, or a reference to a string already sent) */
+    STRING(0x06),
+    XML_DOCUMENT(0x07),
+    /** Date (milliseconds since the epoch, encoded as a double) */
+    DATE(0x08),
+    /** Array - associative part of key/value pairs followed by a dense part */
+    ARRAY(0x09),
+    /** Object - traits (class name and sealed member names) followed by the values */
+    OBJECT(0x0A),
+    XML(0x0B),
+    BYTE_ARRAY(0x0C);
+    private byte value;
+    /** Indexed by the unsigned type marker, so that lookups neither box nor hash */
+    private static final Amf3Type[] quickLookupTable = new Amf3Type[256];
+
+    static {
+        for (Amf3Type amf3Type : Amf3Type.values()) {
+            quickLookupTable[amf3Type.getValue() & 0xff] = amf3Type;
+        }
+    }
+
+    private Amf3Type(int intValue) {
+        this.value = (byte) intValue;
+    }
+
+    public byte getValue() {
+        return value;
+    }
+
+    public static Amf3Type valueOf(byte amf3TypeByte) {
+        return quickLookupTable[amf3TypeByte & 0xff];
+    }
+}
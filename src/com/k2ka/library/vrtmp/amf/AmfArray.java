@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.amf;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,7 +22,24 @@ public class AmfArray implements AmfData {
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        out.write(AmfType.ARRAY.getValue());
+        Util.writeUnsignedInt32(out, getLength());
+        if (items != null) {
+            for (AmfData dataItem : items) {
+                dataItem.writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
+        out.put(AmfType.ARRAY.getValue());
+        BufferCodec.writeUnsignedInt32(out, getLength());
+        if (items != null) {
+            for (AmfData dataItem : items) {
+                dataItem.writeTo(out);
+            }
+        }
     }
 
     @Override
@@ -36,6 +55,23 @@ public class AmfArray implements AmfData {
         }
     }
 
+    @Override
+    public void readFrom(ByteBuffer in) throws IOException {
+        // Skip data type byte (we assume it's already read)
+        int length = BufferCodec.readUnsignedInt32(in);
+        // Every item takes at least one byte, which bounds a corrupt length
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid AMF array length: " + (length & 0xffffffffL));
+        }
+        size = 5; // 1 + 4
+        items = new ArrayList<AmfData>(length);
+        for (int i = 0; i < length; i++) {
+            AmfData dataItem = AmfDecoder.readFrom(in);
+            size += dataItem.getSize();
+            items.add(dataItem);
+        }
+    }
+
     @Override
     public int getSize() {
         if (size == -1) {
@@ -62,6 +98,7 @@ public class AmfArray implements AmfData {
     }
 
     public void addItem(AmfData dataItem) {
-        getItems().add(this);
+        getItems().add(dataItem);
+        size = -1;
     }
 }
@@ -3,6 +3,7 @@ package com.k2ka.library.vrtmp.amf;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -33,15 +34,31 @@ public class AmfBoolean implements AmfData {
         out.write(value ? 0x01 : 0x00);
     }
     
+    @Override
+    public void writeTo(ByteBuffer out) {
+        out.put(AmfType.BOOLEAN.getValue());
+        out.put((byte) (value ? 0x01 : 0x00));
+    }
+
     @Override
     public void readFrom(InputStream in) throws IOException {
         value = (in.read() == 0x01) ? true : false;
     }
+
+    @Override
+    public void readFrom(ByteBuffer in) {
+        value = in.get() == 0x01;
+    }
     
     public static boolean readBooleanFrom(InputStream in) throws IOException {
         // Skip data type byte (we assume it's already read)
         return (in.read() == 0x01) ? true : false;
     }
+
+    public static boolean readBooleanFrom(ByteBuffer in) {
+        // Skip data type byte (we assume it's already read)
+        return in.get() == 0x01;
+    }
     
     @Override
     public int getSize() {
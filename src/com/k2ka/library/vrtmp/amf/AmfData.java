@@ -3,6 +3,7 @@ package com.k2ka.library.vrtmp.amf;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Base AMF data object. All other AMF data type instances derive from this
@@ -17,6 +18,12 @@ public interface AmfData {
      * the specified OutputStream
      */
     void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Write/Serialize this AMF data instance at the buffer's position; the
+     * buffer must have at least {@link #getSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer out);
     
     /**
      * Read and parse bytes from the specified input stream to populate this
@@ -25,6 +32,13 @@ public interface AmfData {
      * @return the amount of bytes read
      */
     void readFrom(InputStream in) throws IOException;
+
+    /**
+     * Read and parse bytes from the buffer's position to populate this
+     * AMFData instance (deserialize); as with the stream version, the data
+     * type byte has already been read
+     */
+    void readFrom(ByteBuffer in) throws IOException;
     
     /** @return the amount of bytes required for this object */
     int getSize();
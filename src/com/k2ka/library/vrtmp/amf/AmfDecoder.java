@@ -1,7 +1,11 @@
 package com.k2ka.library.vrtmp.amf;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
+import com.k2ka.library.vrtmp.utils.Util;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -10,9 +14,134 @@ import java.io.InputStream;
 public class AmfDecoder {
 
     public static AmfData readFrom(InputStream in) throws IOException {
+        final int amfTypeByte = in.read();
+        if (amfTypeByte == -1) {
+            throw new EOFException("End of stream reached while reading an AMF value");
+        }
+        return readFrom(in, (byte) amfTypeByte);
+    }
+
+    /** Reads the AMF value whose data type byte was already read from the stream */
+    static AmfData readFrom(InputStream in, byte amfTypeByte) throws IOException {
+        AmfData amfData = newAmfData(amfTypeByte);
+        amfData.readFrom(in);
+        return amfData;
+    }
+
+    public static AmfData readFrom(ByteBuffer in) throws IOException {
+        return readFrom(in, null);
+    }
+
+    /**
+     * Reads one AMF value; if it switches to AMF3, it is decoded with the
+     * specified decoder, so that the AMF3 values of one message body share
+     * its reference tables. With <code>null</code>, the value gets reference
+     * tables of its own.
+     */
+    public static AmfData readFrom(ByteBuffer in, Amf3Decoder amf3Decoder) throws IOException {
+        final byte amfTypeByte = in.get();
+        if (amfTypeByte == AmfType.AVMPLUS_OBJECT.getValue()) {
+            return (amf3Decoder != null ? amf3Decoder : new Amf3Decoder()).readFrom(in);
+        }
+        AmfData amfData = newAmfData(amfTypeByte);
+        amfData.readFrom(in);
+        return amfData;
+    }
+
+    /**
+     * Reads one AMF value like {@link #readFrom(ByteBuffer)}, except that
+     * objects and maps only keep their encoded properties and decode each
+     * one when it is first accessed
+     */
+    public static AmfData readLazilyFrom(ByteBuffer in) throws IOException {
+        return readLazilyFrom(in, null);
+    }
+
+    /** Reads one AMF value lazily, decoding AMF3 values like {@link #readFrom(ByteBuffer, Amf3Decoder)} */
+    public static AmfData readLazilyFrom(ByteBuffer in, Amf3Decoder amf3Decoder) throws IOException {
+        final byte amfTypeByte = in.get(in.position());
+        if (amfTypeByte == AmfType.OBJECT.getValue() || amfTypeByte == AmfType.MAP.getValue()) {
+            final AmfObject amfObject = amfTypeByte == AmfType.OBJECT.getValue() ? new AmfObject() : new AmfMap();
+            in.get();
+            amfObject.readLazilyFrom(in);
+            return amfObject;
+        }
+        return readFrom(in, amf3Decoder);
+    }
+
+    /** Advances the buffer past one AMF value without decoding it */
+    public static void skip(ByteBuffer in) throws IOException {
+        skip(in, null);
+    }
+
+    /**
+     * Advances the buffer past one AMF value; AMF3 values are decoded, with
+     * the specified decoder like {@link #readFrom(ByteBuffer, Amf3Decoder)},
+     * as their length depends on the reference tables
+     */
+    public static void skip(ByteBuffer in, Amf3Decoder amf3Decoder) throws IOException {
+        final byte amfTypeByte = in.get();
+        final AmfType amfType = AmfType.valueOf(amfTypeByte);
+        if (amfType == null) {
+            throw new IOException("Unknown AMF data type: " + Util.toHexString(amfTypeByte));
+        }
+        switch (amfType) {
+            case NUMBER:
+                skipBytes(in, 8);
+                break;
+            case BOOLEAN:
+                skipBytes(in, 1);
+                break;
+            case STRING: {
+                skipBytes(in, BufferCodec.readUnsignedInt16(in));
+                break;
+            }
+            case OBJECT:
+                skipProperties(in);
+                break;
+            case NULL:
+                break;
+            case MAP:
+                // Skip the "array size"
+                skipBytes(in, 4);
+                skipProperties(in);
+                break;
+            case ARRAY: {
+                final int length = BufferCodec.readUnsignedInt32(in);
+                for (int i = 0; i < length; i++) {
+                    skip(in);
+                }
+                break;
+            }
+            case AVMPLUS_OBJECT:
+                (amf3Decoder != null ? amf3Decoder : new Amf3Decoder()).readFrom(in);
+                break;
+            default:
+                throw new IOException("Unknown/unimplemented AMF data type: " + amfType);
+        }
+    }
+
+    /** Advances the buffer past the key/value pairs and end marker of an object */
+    static void skipProperties(ByteBuffer in) throws IOException {
+        while (!AmfObject.skipEndMarker(in)) {
+            skipBytes(in, BufferCodec.readUnsignedInt16(in));
+            skip(in);
+        }
+    }
+
+    private static void skipBytes(ByteBuffer in, int count) throws IOException {
+        if (count > in.remaining()) {
+            throw new IOException("AMF data truncated: " + count + " bytes expected, " + in.remaining() + " left");
+        }
+        in.position(in.position() + count);
+    }
 
-        byte amfTypeByte = (byte) in.read();
+    /** @return an empty instance of the AMF data type with the specified type byte */
+    private static AmfData newAmfData(byte amfTypeByte) throws IOException {
         AmfType amfType = AmfType.valueOf(amfTypeByte);
+        if (amfType == null) {
+            throw new IOException("Unknown AMF data type: " + Util.toHexString(amfTypeByte));
+        }
 
         AmfData amfData;
         switch (amfType) {
@@ -29,7 +158,8 @@ public class AmfDecoder {
                 amfData = new AmfObject();
                 break;
             case NULL:
-                return new AmfNull();
+                amfData = new AmfNull();
+                break;
             case MAP:
                 amfData = new AmfMap();
                 break;
@@ -39,8 +169,6 @@ public class AmfDecoder {
             default:
                 throw new IOException("Unknown/unimplemented AMF data type: " + amfType);
         }
-        amfData.readFrom(in);
         return amfData;
-
     }
 }
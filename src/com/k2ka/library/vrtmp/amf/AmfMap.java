@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.amf;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -17,6 +19,7 @@ public class AmfMap extends AmfObject {
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
+        decodeProperties();
         // Begin the map/object/array/whatever exactly this is
         out.write(AmfType.MAP.getValue());
 
@@ -34,6 +37,16 @@ public class AmfMap extends AmfObject {
         out.write(OBJECT_END_MARKER);
     }
 
+    @Override
+    public void writeTo(ByteBuffer out) {
+        decodeProperties();
+        // Begin the map/object/array/whatever exactly this is
+        out.put(AmfType.MAP.getValue());
+        // Write the "array size"
+        BufferCodec.writeUnsignedInt32(out, properties.size());
+        writePropertiesTo(out);
+    }
+
     @Override
     public void readFrom(InputStream in) throws IOException {
         // Skip data type byte (we assume it's already read)
@@ -42,6 +55,22 @@ public class AmfMap extends AmfObject {
         size += 4; // Add the bytes read for parsing the array size (length)
     }
 
+    @Override
+    public void readFrom(ByteBuffer in) throws IOException {
+        // Skip data type byte (we assume it's already read)
+        BufferCodec.readUnsignedInt32(in); // Seems this is always 0
+        super.readFrom(in);
+        size += 4; // Add the bytes read for parsing the array size (length)
+    }
+
+    @Override
+    void readLazilyFrom(ByteBuffer in) throws IOException {
+        // Skip data type byte (we assume it's already read)
+        BufferCodec.readUnsignedInt32(in); // Seems this is always 0
+        super.readLazilyFrom(in);
+        size += 4; // Add the bytes read for parsing the array size (length)
+    }
+
     @Override
     public int getSize() {
         if (size == -1) {
@@ -3,6 +3,7 @@ package com.k2ka.library.vrtmp.amf;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -15,15 +16,29 @@ public class AmfNull implements AmfData {
         out.write(AmfType.NULL.getValue());
     }
 
+    @Override
+    public void writeTo(ByteBuffer out) {
+        out.put(AmfType.NULL.getValue());
+    }
+
     @Override
     public void readFrom(InputStream in) throws IOException {
         // Skip data type byte (we assume it's already read)    
     }
+
+    @Override
+    public void readFrom(ByteBuffer in) {
+        // Skip data type byte (we assume it's already read)
+    }
     
     public static void writeNullTo(OutputStream out) throws IOException {
         out.write(AmfType.NULL.getValue());
     }
 
+    public static void writeNullTo(ByteBuffer out) {
+        out.put(AmfType.NULL.getValue());
+    }
+
     @Override
     public int getSize() {
         return 1;
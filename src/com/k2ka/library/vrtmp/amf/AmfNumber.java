@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.amf;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * AMF0 Number data type
@@ -34,8 +36,12 @@ public class AmfNumber implements AmfData {
     
     @Override
     public void writeTo(OutputStream out) throws IOException {
-        out.write(AmfType.NUMBER.getValue());
-        Util.writeDouble(out, value);
+        writeNumberTo(out, value);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
+        writeNumberTo(out, value);
     }
 
     @Override
@@ -43,6 +49,12 @@ public class AmfNumber implements AmfData {
         // Skip data type byte (we assume it's already read)
         value = Util.readDouble(in);
     }
+
+    @Override
+    public void readFrom(ByteBuffer in) {
+        // Skip data type byte (we assume it's already read)
+        value = BufferCodec.readDouble(in);
+    }
     
     public static double readNumberFrom(InputStream in) throws IOException {
        // Skip data type byte
@@ -50,10 +62,24 @@ public class AmfNumber implements AmfData {
        return Util.readDouble(in);
     }
     
+    public static double readNumberFrom(ByteBuffer in) {
+       // Skip data type byte
+       in.get();
+       return BufferCodec.readDouble(in);
+    }
+
     public static void writeNumberTo(OutputStream out, double number) throws IOException {
-       out.write(AmfType.NUMBER.getValue());
-       Util.writeDouble(out, number);
-    } 
+       // Encoded as a whole, so that the stream sees a single write
+       byte[] bytes = new byte[SIZE];
+       bytes[0] = AmfType.NUMBER.getValue();
+       BufferCodec.writeDouble(bytes, 1, number);
+       out.write(bytes);
+    }
+
+    public static void writeNumberTo(ByteBuffer out, double number) {
+       out.put(AmfType.NUMBER.getValue());
+       BufferCodec.writeDouble(out, number);
+    }
     
     @Override
     public int getSize() {
@@ -1,9 +1,11 @@
 package com.k2ka.library.vrtmp.amf;
 
-import java.io.BufferedInputStream;
+import com.k2ka.library.vrtmp.utils.BufferCodec;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -18,36 +20,57 @@ public class AmfObject implements AmfData {
     protected int size = -1;
     /** Byte sequence that marks the end of an AMF object */
     protected static final byte[] OBJECT_END_MARKER = new byte[]{0x00, 0x00, 0x09};
+    /**
+     * Properties that have not been decoded yet, encoded and followed by the
+     * end marker, if this object was read lazily; <code>null</code> once all
+     * properties are decoded
+     */
+    private ByteBuffer encodedProperties;
 
     public AmfObject() {
     }
 
     public AmfData getProperty(String key) {
-        return properties.get(key);
+        AmfData value = properties.get(key);
+        if (value == null && encodedProperties != null) {
+            value = decodeProperty(key);
+        }
+        return value;
     }
 
     public void setProperty(String key, AmfData value) {
+        decodeProperties();
         properties.put(key, value);
+        size = -1;
     }
 
     public void setProperty(String key, boolean value) {
+        decodeProperties();
         properties.put(key, new AmfBoolean(value));
+        size = -1;
     }
 
     public void setProperty(String key, String value) {
+        decodeProperties();
         properties.put(key, new AmfString(value, false));
+        size = -1;
     }
 
     public void setProperty(String key, int value) {
+        decodeProperties();
         properties.put(key, new AmfNumber(value));
+        size = -1;
     }
 
     public void setProperty(String key, double value) {
+        decodeProperties();
         properties.put(key, new AmfNumber(value));
+        size = -1;
     }
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
+        decodeProperties();
         // Begin the object
         out.write(AmfType.OBJECT.getValue());
 
@@ -63,33 +86,162 @@ public class AmfObject implements AmfData {
 
     }
 
+    @Override
+    public void writeTo(ByteBuffer out) {
+        // Begin the object
+        out.put(AmfType.OBJECT.getValue());
+        writePropertiesTo(out);
+    }
+
+    /** Writes the key/value pairs and the end marker of this object */
+    protected void writePropertiesTo(ByteBuffer out) {
+        decodeProperties();
+        for (Map.Entry<String, AmfData> entry : properties.entrySet()) {
+            // The key must be a STRING type, and thus the "type-definition" byte is implied (not included in message)
+            AmfString.writeStringTo(out, entry.getKey(), true);
+            entry.getValue().writeTo(out);
+        }
+        // End the object
+        out.put(OBJECT_END_MARKER);
+    }
+
     @Override
     public void readFrom(InputStream in) throws IOException {
         // Skip data type byte (we assume it's already read)       
         size = 1;
-        InputStream markInputStream = in.markSupported() ? in : new BufferedInputStream(in);
+        while (true) {
+            // Read the property key...
+            String key = AmfString.readStringFrom(in, true);
+            final int amfTypeByte = in.read();
+            if (amfTypeByte == -1) {
+                throw new EOFException("End of stream reached while reading an AMF object");
+            }
+            // ...unless this is the 3-byte object end marker [0x00 0x00 0x09]: an
+            // empty key followed by the end type, so there is no need to peek ahead
+            if (amfTypeByte == OBJECT_END_MARKER[2] && key.length() == 0) {
+                size += 3;
+                return;
+            }
+            size += AmfString.sizeOf(key, true);
+            // ...and the property value
+            AmfData value = AmfDecoder.readFrom(in, (byte) amfTypeByte);
+            size += value.getSize();
+            properties.put(key, value);
+        }
+    }
 
+    @Override
+    public void readFrom(ByteBuffer in) throws IOException {
+        // Skip data type byte (we assume it's already read)
+        size = 1;
         while (true) {
             // Look for the 3-byte object end marker [0x00 0x00 0x09]
-            markInputStream.mark(3);
-            byte[] endMarker = new byte[3];
-            markInputStream.read(endMarker);
-
-            if (endMarker[0] == OBJECT_END_MARKER[0] && endMarker[1] == OBJECT_END_MARKER[1] && endMarker[2] == OBJECT_END_MARKER[2]) {
+            if (skipEndMarker(in)) {
                 size += 3;
                 return;
-            } else {
-                // End marker not found; reset the stream to the marked position and read an AMF property
-                markInputStream.reset();
-                // Read the property key...
-                String key = AmfString.readStringFrom(in, true);
-                size += AmfString.sizeOf(key, true);
-                // ...and the property value
-                AmfData value = AmfDecoder.readFrom(markInputStream);
-                size += value.getSize();
-                properties.put(key, value);
+            }
+            // Read the property key...
+            String key = AmfString.readStringFrom(in, true);
+            size += AmfString.sizeOf(key, true);
+            // ...and the property value
+            AmfData value = AmfDecoder.readFrom(in);
+            size += value.getSize();
+            properties.put(key, value);
+        }
+    }
+
+    /**
+     * Reads this object from the buffer's position (after the data type byte)
+     * without decoding any property: the encoded properties are kept, and
+     * each is decoded when it is first accessed. The buffer's content must
+     * not change while this object is in use.
+     */
+    void readLazilyFrom(ByteBuffer in) throws IOException {
+        final int start = in.position();
+        AmfDecoder.skipProperties(in);
+        final ByteBuffer encoded = in.duplicate();
+        encoded.position(start);
+        encoded.limit(in.position());
+        encodedProperties = encoded.slice();
+        size = 1 + encodedProperties.remaining();
+    }
+
+    /** Decodes the first property with the specified key from the encoded properties */
+    private AmfData decodeProperty(String key) {
+        final ByteBuffer in = encodedProperties.duplicate();
+        try {
+            while (!skipEndMarker(in)) {
+                if (skipKey(in, key)) {
+                    AmfData value = AmfDecoder.readLazilyFrom(in);
+                    properties.put(key, value);
+                    return value;
+                }
+                AmfDecoder.skip(in);
+            }
+            return null;
+        } catch (IOException e) {
+            // The encoded properties were checked when the object was read
+            throw new IllegalStateException("Could not decode AMF object property " + key, e);
+        }
+    }
+
+    /**
+     * Decodes the properties that were not accessed yet of an object read
+     * lazily, keeping those that were; they all end up in the order in which
+     * they were received
+     */
+    protected void decodeProperties() {
+        if (encodedProperties == null) {
+            return;
+        }
+        final ByteBuffer in = encodedProperties.duplicate();
+        final Map<String, AmfData> decoded = new LinkedHashMap<String, AmfData>();
+        try {
+            while (!skipEndMarker(in)) {
+                final String key = AmfString.readStringFrom(in, true);
+                AmfData value = properties.get(key);
+                if (value != null) {
+                    AmfDecoder.skip(in);
+                } else {
+                    value = AmfDecoder.readLazilyFrom(in);
+                }
+                decoded.put(key, value);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode AMF object properties", e);
+        }
+        properties = decoded;
+        encodedProperties = null;
+    }
+
+    /** @return <code>true</code> if the buffer is at an object end marker, which is then skipped */
+    static boolean skipEndMarker(ByteBuffer in) {
+        final int position = in.position();
+        if (in.remaining() >= 3 && in.get(position) == OBJECT_END_MARKER[0] && in.get(position + 1) == OBJECT_END_MARKER[1] && in.get(position + 2) == OBJECT_END_MARKER[2]) {
+            in.position(position + 3);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Skips the property key at the buffer's position
+     *
+     * @return whether it equals the specified key, compared without decoding it
+     */
+    private static boolean skipKey(ByteBuffer in, String key) {
+        final int length = BufferCodec.readUnsignedInt16(in);
+        final int start = in.position();
+        in.position(start + length);
+        if (length != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (in.get(start + i) != (byte) key.charAt(i)) {
+                return false;
             }
         }
+        return true;
     }
 
     @Override
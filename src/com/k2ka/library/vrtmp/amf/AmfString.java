@@ -1,10 +1,11 @@
 package com.k2ka.library.vrtmp.amf;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -38,6 +39,7 @@ public class AmfString implements AmfData {
 
     public void setValue(String value) {
         this.value = value;
+        size = -1;
     }
 
     public boolean isKey() {
@@ -46,31 +48,31 @@ public class AmfString implements AmfData {
 
     public void setKey(boolean key) {
         this.key = key;
+        size = -1;
     }
 
     @Override
     public void writeTo(OutputStream out) throws IOException {
-        // Strings are ASCII encoded
-        byte[] byteValue = this.value.getBytes("ASCII");
-        // Write the STRING data type definition (except if this String is used as a key)
-        if (!key) {
-            out.write(AmfType.STRING.getValue());
-        }
-        // Write 2 bytes indicating string length
-        Util.writeUnsignedInt16(out, byteValue.length);
-        // Write string
-        out.write(byteValue);
+        writeStringTo(out, value, key);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer out) {
+        writeStringTo(out, value, key);
     }
 
     @Override
     public void readFrom(InputStream in) throws IOException {
         // Skip data type byte (we assume it's already read)        
-        int length = Util.readUnsignedInt16(in);
-        size = 3 + length; // 1 + 2 + length
-        // Read string value
-        byte[] byteValue = new byte[length];
-        Util.readBytesUntilFull(in, byteValue);
-        value = new String(byteValue, "ASCII");
+        value = readStringFrom(in, true);
+        size = 3 + value.length(); // 1 + 2 + length
+    }
+
+    @Override
+    public void readFrom(ByteBuffer in) throws IOException {
+        // Skip data type byte (we assume it's already read)
+        value = readStringFrom(in, true);
+        size = 3 + value.length(); // 1 + 2 + length
     }
 
     public static String readStringFrom(InputStream in, boolean isKey) throws IOException {
@@ -82,41 +84,50 @@ public class AmfString implements AmfData {
         // Read string value
         byte[] byteValue = new byte[length];
         Util.readBytesUntilFull(in, byteValue);
-        return new String(byteValue, "ASCII");
+        return AmfStringCache.decode(ByteBuffer.wrap(byteValue), length);
+    }
+
+    public static String readStringFrom(ByteBuffer in, boolean isKey) throws IOException {
+        if (!isKey) {
+            // Read past the data type byte
+            in.get();
+        }
+        // Repeated keys and short values come from the cache, without allocating
+        return AmfStringCache.decode(in, BufferCodec.readUnsignedInt16(in));
     }
 
     public static void writeStringTo(OutputStream out, String string, boolean isKey) throws IOException {
-        // Strings are ASCII encoded
-        byte[] byteValue = string.getBytes("ASCII");
+        // Encoded as a whole, so that the stream sees a single write
+        byte[] bytes = new byte[sizeOf(string, isKey)];
+        writeStringTo(ByteBuffer.wrap(bytes), string, isKey);
+        out.write(bytes);
+    }
+
+    public static void writeStringTo(ByteBuffer out, String string, boolean isKey) {
         // Write the STRING data type definition (except if this String is used as a key)
         if (!isKey) {
-            out.write(AmfType.STRING.getValue());
+            out.put(AmfType.STRING.getValue());
         }
         // Write 2 bytes indicating string length
-        Util.writeUnsignedInt16(out, byteValue.length);
-        // Write string
-        out.write(byteValue);
+        final int length = string.length();
+        BufferCodec.writeUnsignedInt16(out, length);
+        // Strings are ASCII encoded, one byte per character
+        for (int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            out.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
     }
 
     @Override
     public int getSize() {
         if (size == -1) {
-            try {
-                size = (isKey() ? 0 : 1) + 2 + value.getBytes("ASCII").length;
-            } catch (UnsupportedEncodingException ex) {
-                throw new RuntimeException(ex);
-            }
+            size = sizeOf(value, isKey());
         }
         return size;
     }
 
     /** @return the byte size of the resulting AMF string of the specified value */
     public static int sizeOf(String string, boolean isKey) {
-        try {
-            int size = (isKey ? 0 : 1) + 2 + string.getBytes("ASCII").length;
-            return size;
-        } catch (UnsupportedEncodingException ex) {
-            throw new RuntimeException(ex);
-        }
+        return (isKey ? 0 : 1) + 2 + string.length();
     }
 }
@@ -0,0 +1,86 @@
+package com.k2ka.library.vrtmp.amf;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bounded cache of decoded AMF strings, looked up by their raw bytes.
+ * 
+ * Object keys (code, level, description, width, framerate...) and short
+ * values such as status codes repeat in every message; a cache hit returns
+ * the same String instance without allocating anything. The cache is
+ * direct-mapped: a new string simply replaces the one in its slot. Slots
+ * only ever hold immutable Strings, so concurrent decoders need no locking;
+ * at worst they evict each other's entries.
+ *
+ * @author k2ka
+ */
+final class AmfStringCache {
+
+    /** Longer strings are rarely repeated, and are decoded as they come */
+    static final int MAX_CACHED_LENGTH = 32;
+    /** Number of slots; a power of two */
+    private static final int CACHE_SIZE = 512;
+    private static final String[] cache = new String[CACHE_SIZE];
+
+    private AmfStringCache() {
+    }
+
+    /**
+     * Decodes the ASCII string of the specified length at the buffer's
+     * position, and advances the buffer past it
+     */
+    static String decode(ByteBuffer in, int length) {
+        final int start = in.position();
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (length > MAX_CACHED_LENGTH) {
+            return newString(in, length);
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            final byte b = in.get(start + i);
+            if (b < 0) {
+                // Not ASCII; the decoded string would not match its bytes
+                return newString(in, length);
+            }
+            hash = 31 * hash + b;
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        final String cached = cache[slot];
+        if (cached != null && matches(cached, in, start, length)) {
+            in.position(start + length);
+            return cached;
+        }
+        final String string = newString(in, length);
+        cache[slot] = string;
+        return string;
+    }
+
+    private static boolean matches(String string, ByteBuffer in, int start, int length) {
+        if (string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != in.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String newString(ByteBuffer in, int length) {
+        final String string;
+        if (in.hasArray()) {
+            string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.US_ASCII);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            string = new String(bytes, StandardCharsets.US_ASCII);
+        }
+        return string;
+    }
+}
@@ -1,8 +1,5 @@
 package com.k2ka.library.vrtmp.amf;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * AMF0 data type enum 
  * 
@@ -20,13 +17,16 @@ public enum AmfType {
     OBJECT(0x03),
     NULL(0x05),
     MAP(0x08),
-    ARRAY(0x0A);
+    ARRAY(0x0A),
+    /** AVM+ object marker: the next value is AMF3 encoded */
+    AVMPLUS_OBJECT(0x11);
     private byte value;
-    private static final Map<Byte, AmfType> quickLookupMap = new HashMap<Byte, AmfType>();
+    /** Indexed by the unsigned type marker, so that lookups neither box nor hash */
+    private static final AmfType[] quickLookupTable = new AmfType[256];
 
     static {
         for (AmfType amfType : AmfType.values()) {
-            quickLookupMap.put(amfType.getValue(), amfType);
+            quickLookupTable[amfType.getValue() & 0xff] = amfType;
         }
     }
 
@@ -39,6 +39,6 @@ public enum AmfType {
     }
 
     public static AmfType valueOf(byte amfTypeByte) {
-        return quickLookupMap.get(amfTypeByte);
+        return quickLookupTable[amfTypeByte & 0xff];
     }
 }
@@ -1,26 +1,31 @@
 package com.k2ka.library.vrtmp.io;
 
-import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.packets.RtmpHeader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
- * Chunk stream channel information
+ * Chunk stream channel information. The session keeps separate instances
+ * for the inbound and the outbound direction of a chunk stream, so only the
+ * Rx or only the Tx state of an instance is ever used.
  * 
  * @author k2ka
  */
 public class ChunkStreamInfo {
 
+    /** Data messages (metadata) */
     public static final byte RTMP_STREAM_CHANNEL = 0x04;
+    /** Audio and video have chunk streams of their own, so their chunks can be interleaved */
+    public static final byte RTMP_AUDIO_CHANNEL = 0x05;
+    public static final byte RTMP_VIDEO_CHANNEL = 0x06;
     public static final byte RTMP_COMMAND_CHANNEL = 0x03;
     public static final byte CONTROL_CHANNEL = 0x02;
+    /** Timestamp deltas from this value on would need an extended timestamp field */
+    private static final int MAX_TIMESTAMP_DELTA = 0xFFFFFF;
     private RtmpHeader prevHeaderRx;
     private RtmpHeader prevHeaderTx;
     private long realLastTimestamp = 0;
-    private ByteArrayOutputStream baos = new ByteArrayOutputStream(3 * 128); // 128 == default chunk size
+    /** Reassembly buffer of the message being received, sized for the whole message */
+    private FrameBuffer storedPacket;
 
     /** @return the previous header that was received on this channel, or <code>null</code> if no previous header was received */
     public RtmpHeader prevHeaderRx() {
@@ -32,7 +37,7 @@ public class ChunkStreamInfo {
         this.prevHeaderRx = previousHeader;
     }
 
-    /** @return the previous header that was transmitted on this channel */
+    /** @return the previous header that was transmitted on this channel, or <code>null</code> if nothing was sent yet */
     public RtmpHeader getPrevHeaderTx() {
         return prevHeaderTx;
     }
@@ -46,29 +51,86 @@ public class ChunkStreamInfo {
         this.prevHeaderTx = prevHeaderTx;
     }
 
+    /**
+     * Picks the smallest chunk header type that lets the peer rebuild the
+     * specified header from the previous one transmitted on this channel, sets
+     * the header's timestamp delta accordingly and remembers a copy of it as the
+     * new previous header. Must be called once per message, right before its
+     * first chunk is written.
+     */
+    public void compressHeaderTx(RtmpHeader header) {
+        final RtmpHeader prev = prevHeaderTx;
+        final int timestampDelta = prev != null ? header.getAbsoluteTimestamp() - prev.getAbsoluteTimestamp() : -1;
+        if (prev == null || header.getMessageStreamId() != prev.getMessageStreamId()
+                || timestampDelta < 0 || timestampDelta >= MAX_TIMESTAMP_DELTA) {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_0_FULL);
+            header.setTimestampDelta(0);
+        } else if (header.getPacketLength() != prev.getPacketLength() || header.getMessageType() != prev.getMessageType()) {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_1_RELATIVE_LARGE);
+            header.setTimestampDelta(timestampDelta);
+        } else if (prev.getChunkType() == RtmpHeader.ChunkType.TYPE_0_FULL || timestampDelta != prev.getTimestampDelta()) {
+            // A type 3 header repeats the previous delta, which a type 0 header does not carry
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY);
+            header.setTimestampDelta(timestampDelta);
+        } else {
+            header.setChunkType(RtmpHeader.ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE);
+            header.setTimestampDelta(timestampDelta);
+        }
+        if (prev == null) {
+            prevHeaderTx = new RtmpHeader();
+        }
+        // Outbound headers belong to (possibly pooled) packets, so keep a copy
+        prevHeaderTx.copyFrom(header);
+    }
+
     /** Utility method for calculating & synchronizing transmitted timestamps & timestamp deltas */
     public long markRealAbsoluteTimestampTx() {
         realLastTimestamp = System.currentTimeMillis() - realLastTimestamp;
         return realLastTimestamp;
     }
 
-    /** @return <code>true</code> if all packet data has been stored, or <code>false</code> if not */
-    public boolean storePacketChunk(InputStream in, int chunkSize) throws IOException {
-        final int remainingBytes = prevHeaderRx.getPacketLength() - baos.size();
-        byte[] chunk = new byte[Math.min(remainingBytes, chunkSize)];
-        Util.readBytesUntilFull(in, chunk);
-        baos.write(chunk);
-        return (baos.size() == prevHeaderRx.getPacketLength());
+    /**
+     * Copies the specified number of bytes of the message being received from
+     * the buffer's position into the reassembly buffer, which is taken from the
+     * pool with the first bytes of a message. A chunk body may arrive in
+     * pieces, so this is called for whatever part of it has been received.
+     *
+     * @return <code>true</code> if all packet data has been stored, or <code>false</code> if not
+     */
+    public boolean storePacketBytes(ByteBuffer in, int count, FrameBufferPool pool) {
+        final int packetLength = prevHeaderRx.getPacketLength();
+        if (storedPacket == null) {
+            storedPacket = pool.acquire(packetLength);
+        }
+        final ByteBuffer target = storedPacket.getBuffer();
+        final int limit = in.limit();
+        in.limit(in.position() + count);
+        target.put(in);
+        in.limit(limit);
+        if (target.position() < packetLength) {
+            return false;
+        }
+        storedPacket.setLength(packetLength);
+        return true;
+    }
+
+    /** @return the number of bytes stored so far for the message being received */
+    public int getStoredPacketLength() {
+        return storedPacket != null ? storedPacket.getBuffer().position() : 0;
     }
 
-    public ByteArrayInputStream getStoredPacketInputStream() {
-        ByteArrayInputStream bis = new ByteArrayInputStream(baos.toByteArray());
-        baos.reset();
-        return bis;
+    /** @return the completely stored message; the caller takes over its reference and must release it */
+    public FrameBuffer takeStoredPacket() {
+        final FrameBuffer packet = storedPacket;
+        storedPacket = null;
+        return packet;
     }
 
     /** Clears all currently-stored packet chunks (used when an ABORT packet is received) */
     public void clearStoredChunks() {
-        baos.reset();
+        if (storedPacket != null) {
+            storedPacket.release();
+            storedPacket = null;
+        }
     }
 }
\ No newline at end of file
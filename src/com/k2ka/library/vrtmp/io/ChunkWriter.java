@@ -0,0 +1,241 @@
+package com.k2ka.library.vrtmp.io;
+
+import com.k2ka.library.vrtmp.io.packets.RtmpHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Splits RTMP messages into chunks and writes them to a channel using
+ * gathering writes.
+ *
+ * Message bodies are only ever referenced through views, never copied. Header
+ * buffers and body views are recycled once a flush has completed, so writing
+ * the same (pooled) buffers over and over does not allocate.
+ *
+ * @author k2ka
+ */
+public class ChunkWriter {
+
+    private static final int INITIAL_SEGMENT_COUNT = 32;
+    /** Number of body buffers whose views are kept for reuse (power of two) */
+    private static final int VIEW_CACHE_SIZE = 64;
+
+    private final GatheringByteChannel channel;
+    /** Header, body view and continuation byte segments, in wire order */
+    private ByteBuffer[] segments = new ByteBuffer[INITIAL_SEGMENT_COUNT];
+    private int segmentCount;
+    /** Index of the first segment that has not been fully written yet */
+    private int segmentOffset;
+    /** Header and continuation byte buffers; the first <code>headerCount</code> are in use until the next flush */
+    private ByteBuffer[] headers = new ByteBuffer[INITIAL_SEGMENT_COUNT];
+    private int headerCount;
+    /** Used by {@link #append(RtmpHeader, ByteBuffer[], int, ChunkStreamInfo)}, which queues all chunks at once */
+    private final MessageCursor appendCursor = new MessageCursor();
+    private final ViewCacheEntry[] viewCache = new ViewCacheEntry[VIEW_CACHE_SIZE];
+    /** Incremented by every completed flush; views handed out in older generations are free again */
+    private int generation;
+    private long pendingBytes;
+    private long totalBytes;
+
+    public ChunkWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Queues the specified message for writing, using the smallest chunk header
+     * type the previous message on its chunk stream allows; the body buffers are referenced
+     * until the next successful {@link #flush()} and must not be modified before that
+     */
+    public synchronized void append(RtmpHeader header, ByteBuffer[] body, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        beginMessage(appendCursor, header, body, chunkStreamInfo);
+        boolean lastChunk;
+        do {
+            lastChunk = appendChunk(appendCursor, chunkSize);
+        } while (!lastChunk);
+        appendCursor.clear();
+    }
+
+    /**
+     * Starts a message whose chunks are then queued one at a time with
+     * {@link #appendChunk(MessageCursor, int)}, so that chunks of messages on
+     * other chunk streams can go in between. Nothing is queued yet; the body
+     * buffers are referenced until the flush after the last chunk.
+     */
+    public synchronized void beginMessage(MessageCursor cursor, RtmpHeader header, ByteBuffer[] body, final ChunkStreamInfo chunkStreamInfo) {
+        int bodyLength = 0;
+        for (ByteBuffer buffer : body) {
+            bodyLength += buffer.remaining();
+        }
+        header.setPacketLength(bodyLength);
+        chunkStreamInfo.compressHeaderTx(header);
+        cursor.header = header;
+        cursor.body = body;
+        cursor.chunkStreamInfo = chunkStreamInfo;
+        cursor.bufferIndex = 0;
+        cursor.bufferPosition = body.length > 0 ? body[0].position() : 0;
+        cursor.remaining = bodyLength;
+        cursor.started = false;
+    }
+
+    /**
+     * Queues the next chunk of a message started with
+     * {@link #beginMessage(MessageCursor, RtmpHeader, ByteBuffer[], ChunkStreamInfo)}
+     *
+     * @param chunkSize the chunk size in effect for this chunk; it may change
+     * between the chunks of a message if a Set Chunk Size message went in between
+     * @return <code>true</code> if this was the last chunk of the message
+     */
+    public synchronized boolean appendChunk(MessageCursor cursor, final int chunkSize) throws IOException {
+        final RtmpHeader header = cursor.header;
+        ByteBuffer headerBuffer = nextHeaderBuffer();
+        if (!cursor.started) {
+            header.writeTo(headerBuffer, cursor.chunkStreamInfo);
+            cursor.started = true;
+        } else {
+            header.writeAggregateHeaderByte(headerBuffer);
+        }
+        headerBuffer.flip();
+        addSegment(headerBuffer);
+
+        int chunkRemaining = Math.min(chunkSize, cursor.remaining);
+        cursor.remaining -= chunkRemaining;
+        while (chunkRemaining > 0) {
+            final ByteBuffer buffer = cursor.body[cursor.bufferIndex];
+            final int pos = cursor.bufferPosition;
+            final int length = Math.min(chunkRemaining, buffer.limit() - pos);
+            if (length > 0) {
+                ByteBuffer view = viewOf(buffer);
+                view.limit(pos + length);
+                view.position(pos);
+                addSegment(view);
+                chunkRemaining -= length;
+            }
+            if (pos + length == buffer.limit() && ++cursor.bufferIndex < cursor.body.length) {
+                cursor.bufferPosition = cursor.body[cursor.bufferIndex].position();
+            } else {
+                cursor.bufferPosition = pos + length;
+            }
+        }
+        return cursor.remaining == 0;
+    }
+
+    /**
+     * Writes all queued chunks to the channel
+     *
+     * @return <code>true</code> if everything was written, <code>false</code> if
+     * a non-blocking channel could not accept more data
+     */
+    public synchronized boolean flush() throws IOException {
+        while (segmentOffset < segmentCount) {
+            long written = channel.write(segments, segmentOffset, segmentCount - segmentOffset);
+            pendingBytes -= written;
+            while (segmentOffset < segmentCount && !segments[segmentOffset].hasRemaining()) {
+                segments[segmentOffset++] = null;
+            }
+            if (written == 0 && segmentOffset < segmentCount) {
+                return false;
+            }
+        }
+        segmentCount = 0;
+        segmentOffset = 0;
+        headerCount = 0;
+        generation++;
+        return true;
+    }
+
+    /** @return the number of queued bytes that have not been written to the channel yet */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /** @return the number of bytes appended since this writer was created, whether written yet or not */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void addSegment(ByteBuffer segment) {
+        if (segmentCount == segments.length) {
+            segments = Arrays.copyOf(segments, segments.length * 2);
+        }
+        segments[segmentCount++] = segment;
+        pendingBytes += segment.remaining();
+        totalBytes += segment.remaining();
+    }
+
+    private ByteBuffer nextHeaderBuffer() {
+        if (headerCount == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        ByteBuffer headerBuffer = headers[headerCount];
+        if (headerBuffer == null) {
+            headerBuffer = ByteBuffer.allocate(RtmpHeader.MAX_HEADER_SIZE);
+            headers[headerCount] = headerBuffer;
+        }
+        headerCount++;
+        headerBuffer.clear();
+        return headerBuffer;
+    }
+
+    /** @return a view of the specified buffer that is not used by any queued segment */
+    private ByteBuffer viewOf(ByteBuffer source) {
+        final int slot = System.identityHashCode(source) & (VIEW_CACHE_SIZE - 1);
+        ViewCacheEntry entry = viewCache[slot];
+        if (entry == null) {
+            entry = new ViewCacheEntry();
+            viewCache[slot] = entry;
+        }
+        if (entry.source != source) {
+            // Views of the evicted buffer may still be queued; they are simply not reused
+            entry.source = source;
+            Arrays.fill(entry.views, null);
+            entry.used = 0;
+            entry.generation = generation;
+        } else if (entry.generation != generation) {
+            entry.used = 0;
+            entry.generation = generation;
+        }
+        if (entry.used == entry.views.length) {
+            entry.views = Arrays.copyOf(entry.views, entry.views.length * 2);
+        }
+        ByteBuffer view = entry.views[entry.used];
+        if (view == null) {
+            view = source.duplicate();
+            entry.views[entry.used] = view;
+        }
+        entry.used++;
+        return view;
+    }
+
+    /** Where a message that is being queued chunk by chunk stands; reusable */
+    public static final class MessageCursor {
+        private RtmpHeader header;
+        private ByteBuffer[] body;
+        private ChunkStreamInfo chunkStreamInfo;
+        private int bufferIndex;
+        private int bufferPosition;
+        private int remaining;
+        private boolean started;
+
+        /** @return the header of the message, or <code>null</code> if none is in progress */
+        public RtmpHeader getHeader() {
+            return header;
+        }
+
+        /** Drops the references to the message */
+        public void clear() {
+            header = null;
+            body = null;
+            chunkStreamInfo = null;
+        }
+    }
+
+    private static final class ViewCacheEntry {
+        ByteBuffer source;
+        ByteBuffer[] views = new ByteBuffer[4];
+        int used;
+        int generation;
+    }
+}
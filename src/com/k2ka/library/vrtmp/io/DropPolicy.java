@@ -0,0 +1,65 @@
+package com.k2ka.library.vrtmp.io;
+
+/**
+ * Decides which video frames the connection may drop when the uplink cannot
+ * keep up
+ *
+ * Only H.264 inter frames are dropped by choice. Since the frames after a
+ * dropped one cannot be decoded anymore, the rest of its GOP is dropped as
+ * well, up to the next key frame; a key frame is only skipped when it is
+ * stale and a newer one is already queued. Audio and sequence headers are
+ * never dropped. Whenever dropping starts, the listener is asked for a key
+ * frame so that the stream recovers quickly.
+ *
+ * @author k2ka
+ */
+public final class DropPolicy {
+
+    /** Frames are never dropped; SendData waits for room in the send queue instead */
+    public static final DropPolicy NEVER = new DropPolicy(false, 0, 0);
+
+    private final boolean enabled;
+    private final int frameTtlMs;
+    private final long maxQueuedBytes;
+
+    private DropPolicy(boolean enabled, int frameTtlMs, long maxQueuedBytes) {
+        this.enabled = enabled;
+        this.frameTtlMs = frameTtlMs;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Drops video frames instead of waiting when the send queue is full
+     *
+     * @param frameTtlMs video frames that waited longer than this are dropped when
+     * their turn comes (0 = no time limit)
+     * @param maxQueuedBytes the send queue counts as full for video frames once this
+     * many bytes are queued (0 = only when it is out of slots)
+     */
+    public static DropPolicy dropVideo(int frameTtlMs, long maxQueuedBytes) {
+        return new DropPolicy(true, frameTtlMs, maxQueuedBytes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return how long a video frame may wait in the send queue, in milliseconds (0 = no limit) */
+    public int getFrameTtlMs() {
+        return frameTtlMs;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /** @return <code>true</code> if a frame queued at <code>enqueueTimeNs</code> (System.nanoTime()) is too old to be sent */
+    public boolean isStale(long enqueueTimeNs, long nowNs) {
+        return frameTtlMs > 0 && nowNs - enqueueTimeNs > frameTtlMs * 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return enabled ? "DropPolicy (ttl: " + frameTtlMs + " ms, max queued: " + maxQueuedBytes + " bytes)" : "DropPolicy (never)";
+    }
+}
@@ -0,0 +1,88 @@
+package com.k2ka.library.vrtmp.io;
+
+/**
+ * Decides when the connection writer pushes buffered chunks to the socket
+ *
+ * Everything that is pending at flush time goes out in a single gathering
+ * write, so holding media back for a few milliseconds trades a little latency
+ * for far fewer (and larger) socket writes. Protocol control messages and
+ * commands are always flushed right away, whatever the policy.
+ *
+ * @author k2ka
+ */
+public final class FlushPolicy {
+
+    public enum Mode {
+        /** Flush after every message */
+        IMMEDIATE,
+        /** Flush once a video key frame has been queued */
+        ON_KEYFRAME,
+        /** Flush once the oldest pending message has waited the configured delay */
+        INTERVAL,
+        /** Flush once the configured number of bytes is pending */
+        BYTES
+    }
+
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(Mode.IMMEDIATE, 0, 0);
+
+    private final Mode mode;
+    private final int maxBufferedBytes;
+    private final int maxDelayMs;
+
+    private FlushPolicy(Mode mode, int maxBufferedBytes, int maxDelayMs) {
+        this.mode = mode;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /** Flushes on every video key frame, and in any case once pending data is <code>maxDelayMs</code> old */
+    public static FlushPolicy onKeyFrame(int maxDelayMs) {
+        return new FlushPolicy(Mode.ON_KEYFRAME, 0, maxDelayMs);
+    }
+
+    /** Flushes once pending data is <code>delayMs</code> old */
+    public static FlushPolicy everyMillis(int delayMs) {
+        return new FlushPolicy(Mode.INTERVAL, 0, delayMs);
+    }
+
+    /** Flushes once <code>bytes</code> are pending, and in any case once pending data is <code>maxDelayMs</code> old */
+    public static FlushPolicy whenBuffered(int bytes, int maxDelayMs) {
+        return new FlushPolicy(Mode.BYTES, bytes, maxDelayMs);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    /** @return the longest time a message may stay buffered, in milliseconds (0 for {@link Mode#IMMEDIATE}) */
+    public int getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    /**
+     * @param keyFrame whether the message just buffered is a video key frame
+     * @param pendingBytes the number of bytes buffered so far
+     * @param pendingMs how long the oldest buffered message has been waiting
+     */
+    public boolean shouldFlush(boolean keyFrame, long pendingBytes, long pendingMs) {
+        switch (mode) {
+            case ON_KEYFRAME:
+                return keyFrame || pendingMs >= maxDelayMs;
+            case INTERVAL:
+                return pendingMs >= maxDelayMs;
+            case BYTES:
+                return pendingBytes >= maxBufferedBytes || pendingMs >= maxDelayMs;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FlushPolicy (" + mode + ", bytes: " + maxBufferedBytes + ", delay: " + maxDelayMs + " ms)";
+    }
+}
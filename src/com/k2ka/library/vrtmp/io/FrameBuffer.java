@@ -0,0 +1,124 @@
+package com.k2ka.library.vrtmp.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted frame payload buffer, handed out by a {@link FrameBufferPool}
+ *
+ * A freshly acquired buffer holds one reference, owned by the producer. Every
+ * component that keeps the frame around (e.g. a queued packet, possibly on
+ * several connections) retains it and releases it once done. When the last
+ * reference is released the pool's release listener is notified and the
+ * buffer is recycled.
+ *
+ * Memory the caller does not get from a pool (e.g. an encoder's output
+ * buffer) can be sent the same way with {@link #wrap(ByteBuffer, FrameBufferPool.ReleaseListener)}:
+ * the listener then tells when the publisher is done with it.
+ *
+ * @author k2ka
+ */
+public final class FrameBuffer {
+
+    /** The pool this buffer returns to, or <code>null</code> for wrapped memory */
+    private final FrameBufferPool pool;
+    /** Notified on the last release of wrapped memory; pooled buffers use the pool's listener */
+    private final FrameBufferPool.ReleaseListener releaseListener;
+    private final ByteBuffer buffer;
+    /** Read-only view of the frame bytes [0, length), handed to the send path */
+    private final ByteBuffer payload;
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    FrameBuffer(FrameBufferPool pool, int capacity, boolean direct) {
+        this.pool = pool;
+        this.releaseListener = null;
+        this.buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        this.payload = buffer.asReadOnlyBuffer();
+    }
+
+    private FrameBuffer(ByteBuffer frame, FrameBufferPool.ReleaseListener releaseListener) {
+        this.pool = null;
+        this.releaseListener = releaseListener;
+        this.buffer = frame.slice();
+        this.payload = buffer.asReadOnlyBuffer();
+        refCount.set(1);
+    }
+
+    /**
+     * Wraps the remaining bytes of the specified (heap or direct) buffer,
+     * without copying them, in a frame holding a single reference owned by
+     * the caller; the buffer's position is not modified. Once every reference
+     * is released, i.e. the frame has been written or dropped everywhere, the
+     * listener is notified and the memory is the caller's again.
+     *
+     * @param releaseListener notified on the last release, on whichever thread releases it; may be <code>null</code>
+     */
+    public static FrameBuffer wrap(ByteBuffer frame, FrameBufferPool.ReleaseListener releaseListener) {
+        return new FrameBuffer(frame, releaseListener);
+    }
+
+    /** @return the backing array to fill, or <code>null</code> if this is a direct buffer or wrapped memory */
+    public byte[] array() {
+        return pool != null && buffer.hasArray() ? buffer.array() : null;
+    }
+
+    /** @return the buffer to fill the frame into; set the frame size with {@link #setLength(int)} afterwards */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public int getLength() {
+        return payload.limit();
+    }
+
+    /** Sets the number of valid frame bytes, starting at index 0 */
+    public void setLength(int length) {
+        payload.limit(length);
+        payload.position(0);
+    }
+
+    /**
+     * @return a read-only view of the frame bytes. The same instance is returned
+     * on every call; its position and limit must not be modified
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    public FrameBuffer retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            refCount.getAndDecrement();
+            throw new IllegalStateException("Frame buffer has already been released");
+        }
+        return this;
+    }
+
+    public void release() {
+        final int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            } else if (releaseListener != null) {
+                releaseListener.onFrameReleased(this);
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame buffer released more often than retained");
+        }
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    /** Prepares a recycled buffer for its next owner */
+    void reset() {
+        buffer.clear();
+        payload.position(0);
+        payload.limit(0);
+        refCount.set(1);
+    }
+}
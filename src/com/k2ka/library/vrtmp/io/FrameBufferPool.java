@@ -0,0 +1,106 @@
+package com.k2ka.library.vrtmp.io;
+
+/**
+ * Pool of {@link FrameBuffer}s in power-of-two size classes (1 KB to 4 MB)
+ *
+ * Frames larger than the biggest size class are allocated on demand and left
+ * to the garbage collector when released. The pool is safe to use from
+ * several producer and writer threads.
+ *
+ * @author k2ka
+ */
+public class FrameBufferPool {
+
+    /** Notified when the last reference to a frame has been released, i.e. once it has been sent everywhere */
+    public interface ReleaseListener {
+        void onFrameReleased(FrameBuffer frame);
+    }
+
+    private static final int MIN_SIZE_CLASS_SHIFT = 10;
+    private static final int MAX_SIZE_CLASS_SHIFT = 22;
+    private static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 32;
+
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+    private final boolean direct;
+    private volatile ReleaseListener releaseListener;
+
+    public FrameBufferPool() {
+        this(false, DEFAULT_MAX_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param direct allocate direct buffers, which the socket can write without an intermediate copy
+     * @param maxBuffersPerClass the maximum number of idle buffers kept per size class
+     */
+    public FrameBufferPool(boolean direct, int maxBuffersPerClass) {
+        this.direct = direct;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(maxBuffersPerClass);
+        }
+    }
+
+    public void setReleaseListener(ReleaseListener releaseListener) {
+        this.releaseListener = releaseListener;
+    }
+
+    /** @return a buffer of at least <code>size</code> bytes, holding a single reference owned by the caller */
+    public FrameBuffer acquire(int size) {
+        final int index = sizeClassIndex(size);
+        FrameBuffer frame = null;
+        if (index >= 0) {
+            frame = sizeClasses[index].take();
+            if (frame == null) {
+                frame = new FrameBuffer(this, 1 << (index + MIN_SIZE_CLASS_SHIFT), direct);
+            }
+        } else {
+            frame = new FrameBuffer(this, size, direct);
+        }
+        frame.reset();
+        return frame;
+    }
+
+    void recycle(FrameBuffer frame) {
+        ReleaseListener listener = releaseListener;
+        if (listener != null) {
+            listener.onFrameReleased(frame);
+        }
+        final int index = sizeClassIndex(frame.capacity());
+        if (index >= 0 && frame.capacity() == 1 << (index + MIN_SIZE_CLASS_SHIFT)) {
+            sizeClasses[index].offer(frame);
+        }
+    }
+
+    /** @return the index of the smallest size class that fits <code>size</code> bytes, or -1 if it is too large */
+    private static int sizeClassIndex(int size) {
+        if (size <= 1 << MIN_SIZE_CLASS_SHIFT) {
+            return 0;
+        }
+        final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift <= MAX_SIZE_CLASS_SHIFT ? shift - MIN_SIZE_CLASS_SHIFT : -1;
+    }
+
+    /** Bounded stack of idle buffers of one size */
+    private static final class SizeClass {
+        private final FrameBuffer[] buffers;
+        private int count;
+
+        SizeClass(int capacity) {
+            buffers = new FrameBuffer[capacity];
+        }
+
+        synchronized FrameBuffer take() {
+            if (count == 0) {
+                return null;
+            }
+            FrameBuffer frame = buffers[--count];
+            buffers[count] = null;
+            return frame;
+        }
+
+        synchronized void offer(FrameBuffer frame) {
+            if (count < buffers.length) {
+                buffers[count++] = frame;
+            }
+        }
+    }
+}
@@ -8,6 +8,13 @@ import com.k2ka.library.vrtmp.io.packets.RtmpPacket;
  */
 public interface PacketRxHandler {
     
+    /**
+     * Received Audio and Video packets hold a reference to a pooled buffer:
+     * the handler owns that reference, and must recycle the packet once it
+     * is done with it, including when it drops the packet. Command and Data
+     * packets reference the decoder's buffers, which are reused once this
+     * returns; see {@link com.k2ka.library.vrtmp.io.packets.VariableBodyRtmpPacket#detachBody()}
+     */
     public void handleRxPacket(RtmpPacket rtmpPacket);
     
     public void notifyWindowAckRequired(final int numBytesReadThusFar);    
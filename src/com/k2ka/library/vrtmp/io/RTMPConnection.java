@@ -1,32 +1,75 @@
 package com.k2ka.library.vrtmp.io;
 
+import com.k2ka.library.vrtmp.KeyFrameRequestListener;
 import com.k2ka.library.vrtmp.RTMPPublisher;
 import com.k2ka.library.vrtmp.RTMPPublisherListener;
+import com.k2ka.library.vrtmp.SendStatsListener;
 import com.k2ka.library.vrtmp.amf.*;
 import com.k2ka.library.vrtmp.io.packets.*;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Created by k2ka on 7/24/15.
+ *
+ * Connections do not own threads: the socket is non-blocking and everything
+ * from connecting and handshaking to reading and writing runs on the
+ * {@link RtmpEventLoop} the connection is bound to. Only the send queue is
+ * shared with the threads that publish frames.
  */
 public class RTMPConnection implements RTMPPublisher {
     private static final String TAG = "RTMPConnection";
     private static final Pattern RTMP_URL_PATTERN = Pattern.compile("^rtmp://([^/:]+)(:(\\d+))*/([^/:]+)$");
     private static final int TCP_TIMEOUT_MS = 2000;
-    private static final int DEFAULT_CHUNK_SIZE = 4096;
-    private static final int MAIN_LOOP_SLEEP_WHEN_PUBLISHING = 10000;
+    /** Outbound chunk size announced right after the handshake, unless one was set */
+    private static final int DEFAULT_TX_CHUNK_SIZE = 4096;
+    /** Number of media messages the outbound chunk size is auto-tuned over */
+    private static final int CHUNK_SIZE_TUNE_WINDOW = 64;
+    private static final int MAX_TUNED_CHUNK_SIZE = 64 * 1024;
+    /**
+     * How many bytes of a video message are queued on the chunk writer before
+     * they are flushed and newer audio gets a chance to go in between
+     */
+    private static final int VIDEO_CHUNK_INTERLEAVE_BYTES = 16 * 1024;
+    /**
+     * How many bytes one drain pass appends before it yields to the event
+     * loop, so that inbound control messages (pings, acknowledgements) and
+     * other connections on the loop are handled while a backlog is sent
+     */
+    private static final int DRAIN_BATCH_BYTES = 64 * 1024;
+    /** Size of the inbound buffer, which holds one socket read; the decoder keeps partly received chunks itself, so it never grows */
+    private static final int INBOUND_BUFFER_SIZE = 16 * 1024;
+    private static final int SEND_QUEUE_CAPACITY = 1024;
+    /** How long a producer backs off while the send queue is full */
+    private static final long SEND_QUEUE_FULL_PARK_NS = 1000000;
+    /** Queued with packets whose header timestamp is already final (commands, control messages) */
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    private static final int DEFAULT_STATS_INTERVAL_MS = 1000;
+    /** FLV tag headers: AAC raw frame, AVC NALU (key/inter frame) with zero composition time */
+    private static final ByteBuffer AAC_RAW_TAG_HEADER = ByteBuffer.wrap(new byte[]{(byte) 0xaf, 0x01}).asReadOnlyBuffer();
+    private static final ByteBuffer AVC_KEY_NALU_TAG_HEADER = ByteBuffer.wrap(new byte[]{0x17, 0x01, 0x00, 0x00, 0x00}).asReadOnlyBuffer();
+    private static final ByteBuffer AVC_INTER_NALU_TAG_HEADER = ByteBuffer.wrap(new byte[]{0x27, 0x01, 0x00, 0x00, 0x00}).asReadOnlyBuffer();
+    private static final CommandTemplate CREATE_STREAM_TEMPLATE = new CommandTemplate("createStream");
+    /** Stream ID servers give the first stream created on a connection; fast start publishes on it */
+    private static final int FAST_START_STREAM_ID = 1;
 
     private Status _status;
     private String _rtmpUrl;
@@ -35,19 +78,96 @@ public class RTMPConnection implements RTMPPublisher {
     private String _app;
     private ExecutorService _taskWorkers;
     private RTMPPublisherListener _listener;
-    private Socket _socket;
-    private BufferedInputStream _inputStream;
-    private BufferedOutputStream _outputStream;
+    private RtmpEventLoopGroup _eventLoopGroup;
+    private RtmpEventLoop _eventLoop;
+    private SocketChannel _socketChannel;
+    private SelectionKey _selectionKey;
+    private ByteBuffer _inBuffer;
+    private ByteBufferInputStream _inStream;
+    /** Non-null while handshaking */
+    private Handshake _handshake;
+    private ByteBuffer _handshakeOut;
+    private boolean _handshakeS1Read;
+    private boolean _handshakeS2Read;
+    private ChunkWriter _chunkWriter;
+    /**
+     * Media queues, one per priority class: audio (and data messages) is sent
+     * ahead of queued video, and may go between the chunks of a video message
+     */
+    private SendQueue _audioQueue;
+    private SendQueue _videoQueue;
+    /** Protocol control messages produced on the event loop; sent before anything else */
+    private final ArrayDeque<RtmpPacket> _controlPackets = new ArrayDeque<RtmpPacket>();
+    /** Commands produced on the event loop; sent after control messages, before media */
+    private final ArrayDeque<RtmpPacket> _commandPackets = new ArrayDeque<RtmpPacket>();
+    private final AtomicBoolean _drainScheduled = new AtomicBoolean();
+    private volatile FlushPolicy _flushPolicy = FlushPolicy.IMMEDIATE;
+    private volatile DropPolicy _dropPolicy = DropPolicy.NEVER;
+    /** Number of queued video key frames (sequence headers excluded) */
+    private final AtomicInteger _queuedKeyFrames = new AtomicInteger();
+    /** Set while producers drop the rest of a GOP after dropping an inter frame */
+    private volatile boolean _droppingQueuedGop;
+    /** Set while the event loop drops the rest of a GOP after dropping a stale frame; event loop only */
+    private boolean _droppingStaleGop;
+    /** Set from the key frame request until the next key frame is written */
+    private final AtomicBoolean _keyFrameRequested = new AtomicBoolean();
+    /** Packets appended to the chunk writer but not flushed yet; event loop only */
+    private final ArrayDeque<RtmpPacket> _unflushedPackets = new ArrayDeque<RtmpPacket>();
+    /** When each unflushed packet was queued, in the same order (0 for control packets); event loop only */
+    private long[] _unflushedEnqueueTimes = new long[16];
+    /** When the oldest unflushed packet was appended (System.nanoTime()); event loop only */
+    private long _pendingSinceNs;
+    private boolean _flushTimerScheduled;
+    /** Set while the socket does not accept more data; draining resumes once it is writable */
+    private boolean _writeBlocked;
+    /** The video message whose chunks are being queued, if any; event loop only */
+    private Video _chunkedVideo;
+    private long _chunkedVideoEnqueueTimeNs;
+    private final ChunkWriter.MessageCursor _chunkedVideoCursor = new ChunkWriter.MessageCursor();
+    private final SendStatsRecorder _sendStatsRecorder = new SendStatsRecorder();
+    private volatile SendStats _sendStats;
+    private volatile int _statsIntervalMs = DEFAULT_STATS_INTERVAL_MS;
+    private boolean _statsTimerScheduled;
+    /** The outbound chunk size set by the application */
+    private volatile int _txChunkSize = DEFAULT_TX_CHUNK_SIZE;
+    private volatile boolean _autoTuneChunkSize;
+    /** The outbound chunk size of the last Set Chunk Size message queued; event loop only */
+    private int _requestedTxChunkSize;
+    /** Media messages and bytes appended since the chunk size was last tuned; event loop only */
+    private int _tuneMessages;
+    private long _tuneBytes;
     private RtmpSessionInfo _rtmpSessionInfo;
     private int _transactionIDCounter;
     private int _currentStreamMsgID;
     private RtmpDecoder _rtmpDecoder;
     private int _streamID;
     private String _channelName;
-    private int _mainLoopNumSleep;
+    /** Commands sent on every connection, encoded once per Init */
+    private CommandTemplate _connectTemplate;
+    private CommandTemplate _releaseStreamTemplate;
+    private CommandTemplate _fcPublishTemplate;
+    private CommandTemplate _publishTemplate;
+    /** The object encoding requested in the connect command */
+    private volatile int _objectEncoding = OBJECT_ENCODING_AMF0;
+    /** Set once the server accepted AMF3; data messages are then sent with the AMF3 message type */
+    private volatile boolean _amf3Accepted;
+    private volatile boolean _fastStart;
+    /** Whether this connection's commands were sent without waiting for results; event loop only */
+    private boolean _pipelinedBringUp;
+    /** Stream ID of a publish sent on a wrongly predicted stream, whose status is ignored; event loop only */
+    private int _mispredictedStreamID;
+    /** Recycled media packets, so that steady-state publishing does not allocate per frame */
+    private final ArrayDeque<Audio> _audioPacketPool = new ArrayDeque<Audio>();
+    private final ArrayDeque<Video> _videoPacketPool = new ArrayDeque<Video>();
 
     public RTMPConnection() {
+        this(null);
+    }
+
+    /** @param eventLoopGroup the loops to run on, or <code>null</code> for {@link RtmpEventLoopGroup#getDefault()} */
+    public RTMPConnection(RtmpEventLoopGroup eventLoopGroup) {
         _status = Status.NEW;
+        _eventLoopGroup = eventLoopGroup;
     }
 
     @Override
@@ -70,6 +190,7 @@ public class RTMPConnection implements RTMPPublisher {
             _app = matcher.group(4);
             String portStr = matcher.group(3);
             _port = portStr != null ? Integer.parseInt(portStr) : 1935;
+            BuildCommandTemplates();
         } catch (Exception e) {
             e.printStackTrace();
             _status = Status.FAIL;
@@ -77,296 +198,515 @@ public class RTMPConnection implements RTMPPublisher {
             return;
         }
 
-        // begin make connection to rtmp server and handshaking
+        try {
+            if (_eventLoopGroup == null)
+                _eventLoopGroup = RtmpEventLoopGroup.getDefault();
+        } catch (IOException e) {
+            _status = Status.FAIL;
+            _listener.onError(ERROR.CONNECT_SERVER_FAIL, e.toString());
+            return;
+        }
+        _eventLoop = _eventLoopGroup.next();
+
+        // frames may be queued right away; they are sent once the stream is set up
+        _audioQueue = new SendQueue(SEND_QUEUE_CAPACITY);
+        _videoQueue = new SendQueue(SEND_QUEUE_CAPACITY);
+
+        // name resolution blocks, so it is done on the task handler rather than the event loop
         taskHandler.submit(new Runnable() {
             @Override
             public void run() {
-                try {
-                    _socket = new Socket();
-                    SocketAddress socketAddress = new InetSocketAddress(_host, _port);
-                    _socket.connect(socketAddress, TCP_TIMEOUT_MS);
-                    _inputStream = new BufferedInputStream(_socket.getInputStream());
-                    _outputStream = new BufferedOutputStream(_socket.getOutputStream());
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.CONNECT_SERVER_FAIL, e.toString());
-                    return;
-                }
-                // handshaking
-                try {
-                    handshake();
-                } catch (Exception e) {
+                final InetSocketAddress socketAddress = new InetSocketAddress(_host, _port);
+                if (socketAddress.isUnresolved()) {
                     _status = Status.FAIL;
-                    _listener.onError(ERROR.HANDSHAKE_FAIL, e.toString());
+                    _listener.onError(ERROR.CONNECT_SERVER_FAIL, new UnknownHostException(_host).toString());
                     return;
                 }
-                _rtmpSessionInfo = new RtmpSessionInfo();
-                _transactionIDCounter = 0;
-                _currentStreamMsgID = 0;
-                _rtmpDecoder = new RtmpDecoder(_rtmpSessionInfo);
-
-                try {
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
-                    SetChunkSize setChunkSize = new SetChunkSize(DEFAULT_CHUNK_SIZE);
-                    setChunkSize.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (IOException e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.SET_CHUNK_SIZE_FAIL, e.toString());
-                    return;
-                }
-
-                _mainLoopNumSleep = 20;
-                Thread mainLoop = new Thread(new Runnable() {
+                _eventLoop.execute(new Runnable() {
                     @Override
                     public void run() {
-                        while (_status != Status.NEW && _status != Status.FAIL) {
-                            MainHandlerLoopFunction();
-                            try {
-                                Thread.sleep(_mainLoopNumSleep);
-                            } catch (InterruptedException e) {
-                                _status = Status.FAIL;
-                                _listener.onError(ERROR.THREAD_INTERRUPT, e.toString());
-                            }
-                        }
+                        StartConnect(socketAddress);
                     }
                 });
-                mainLoop.start();
-                Connect();
             }
         });
     }
 
-    private void Connect() {
-        _taskWorkers.submit(new Runnable() {
-            @Override
-            public void run() {
-                Command connectCmd = new Command("connect", ++_transactionIDCounter, _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
-                connectCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
-
-                AmfObject args = new AmfObject();
-                args.setProperty("app", _app);
-                args.setProperty("type", "nonprivate");
-                args.setProperty("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
-                args.setProperty("swfUrl", _rtmpUrl);
-                args.setProperty("tcUrl", _rtmpUrl);
-                connectCmd.addData(args);
-                connectCmd.getHeader().setAbsoluteTimestamp(0);
-
-                final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
-                try {
-                    connectCmd.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.CONNECT_CMD_FAIL, e.toString());
-                    return;
-                }
-                _rtmpSessionInfo.addInvokedCommand(connectCmd.getTransactionId(), connectCmd.getCommandName());
+    private final RtmpEventLoop.ChannelHandler _channelHandler = new RtmpEventLoop.ChannelHandler() {
+        @Override
+        public void onChannelReady(SelectionKey key) {
+            HandleChannelReady(key);
+        }
+
+        @Override
+        public void onChannelError(SelectionKey key, RuntimeException e) {
+            // closes the socket, releases the queued and pooled buffers and tells the listener
+            Fail(_handshake != null ? ERROR.HANDSHAKE_FAIL : ERROR.RECEIVE_RTMP_FAIL, e.toString());
+        }
+    };
+
+    /** Receives the messages completed by the decoder; ignores them once the connection has ended */
+    private final PacketRxHandler _packetRxHandler = new PacketRxHandler() {
+        @Override
+        public void handleRxPacket(RtmpPacket rtmpPacket) {
+            if (_status == Status.NEW || _status == Status.FAIL) {
+                if (rtmpPacket instanceof ContentData)
+                    ((ContentData) rtmpPacket).recycle();
+                return;
             }
-        });
+            HandleRxPacket(rtmpPacket);
+        }
+
+        @Override
+        public void notifyWindowAckRequired(int numBytesReadThusFar) {
+            if (_status == Status.NEW || _status == Status.FAIL)
+                return;
+            enqueueControlPacket(new Acknowledgement(numBytesReadThusFar));
+        }
+    };
+
+    private final Runnable _drainTask = new Runnable() {
+        @Override
+        public void run() {
+            _drainScheduled.set(false);
+            DrainSendQueue();
+        }
+    };
+
+    private final Runnable _flushTimerTask = new Runnable() {
+        @Override
+        public void run() {
+            _flushTimerScheduled = false;
+            FlushIfDue();
+        }
+    };
+
+    private final Runnable _statsTimerTask = new Runnable() {
+        @Override
+        public void run() {
+            _statsTimerScheduled = false;
+            ReportSendStats();
+        }
+    };
+
+    private void StartConnect(InetSocketAddress socketAddress) {
+        if (_status == Status.NEW || _status == Status.FAIL)
+            return;
+        try {
+            _socketChannel = SocketChannel.open();
+            _socketChannel.configureBlocking(false);
+            _chunkWriter = new ChunkWriter(_socketChannel);
+            _inBuffer = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+            _inStream = new ByteBufferInputStream(_inBuffer);
+            if (_socketChannel.connect(socketAddress)) {
+                _selectionKey = _eventLoop.register(_socketChannel, 0, _channelHandler);
+                StartHandshake();
+            } else {
+                _selectionKey = _eventLoop.register(_socketChannel, SelectionKey.OP_CONNECT, _channelHandler);
+                final SocketChannel socketChannel = _socketChannel;
+                _eventLoop.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (socketChannel == _socketChannel && socketChannel.isConnectionPending())
+                            Fail(ERROR.CONNECT_SERVER_FAIL, "Connect timed out");
+                    }
+                }, TCP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            Fail(ERROR.CONNECT_SERVER_FAIL, e.toString());
+        }
     }
 
-    private void PublishStream() {
-        _taskWorkers.submit(new Runnable() {
-            @Override
-            public void run() {
-                // release stream first
-                Command releaseCmd = new Command("releaseStream", ++_transactionIDCounter, _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
-                releaseCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
-                releaseCmd.addData(new AmfNull());
-                AmfString argsChannelName = new AmfString(_channelName, false);
-                releaseCmd.addData(argsChannelName);
-                releaseCmd.getHeader().setAbsoluteTimestamp(0);
-                final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                try {
-                    releaseCmd.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.RELEASE_CMD_FAIL, e.toString());
-                    return;
-                }
-                _rtmpSessionInfo.addInvokedCommand(releaseCmd.getTransactionId(), releaseCmd.getCommandName());
-
-                // FCPublish stream
-                Command fcPublishCmd = new Command("FCPublish", ++_transactionIDCounter, _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
-                fcPublishCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
-                fcPublishCmd.addData(new AmfNull());
-                fcPublishCmd.addData(argsChannelName);
-                fcPublishCmd.getHeader().setAbsoluteTimestamp(0);
-                try {
-                    fcPublishCmd.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.FCPUBLISH_CMD_FAIL, e.toString());
-                    return;
-                }
-                _rtmpSessionInfo.addInvokedCommand(fcPublishCmd.getTransactionId(), fcPublishCmd.getCommandName());
-
-                // create Stream
-                Command createStream = new Command("createStream", ++_transactionIDCounter, _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
-                createStream.getHeader().setMessageStreamId(_currentStreamMsgID++);
-                createStream.getHeader().setAbsoluteTimestamp(0);
-                try {
-                    createStream.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.CREATE_STREAM_CMD_FAIL, e.toString());
+    private void HandleChannelReady(SelectionKey key) {
+        if (_status == Status.NEW || _status == Status.FAIL) {
+            key.cancel();
+            return;
+        }
+        if (key.isConnectable()) {
+            try {
+                if (!_socketChannel.finishConnect())
                     return;
-                }
-                _rtmpSessionInfo.addInvokedCommand(createStream.getTransactionId(), createStream.getCommandName());
+                StartHandshake();
+            } catch (Exception e) {
+                Fail(ERROR.CONNECT_SERVER_FAIL, e.toString());
+                return;
             }
-        });
+        }
+        if (key.isValid() && key.isWritable()) {
+            HandleWritable();
+        }
+        if (key.isValid() && key.isReadable()) {
+            HandleReadable();
+        }
     }
 
-    @Override
-    public void Release() {
-        _taskWorkers = null;
-        _listener = null;
-        _app = null;
-        _host = null;
-        _rtmpDecoder = null;
-        _rtmpSessionInfo = null;
-        _rtmpUrl = null;
-        _channelName = null;
+    private void StartHandshake() throws IOException, NoSuchAlgorithmException, InvalidKeyException {
+        _handshake = new Handshake();
+        _handshakeS1Read = false;
+        _handshakeS2Read = false;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 + Handshake.HANDSHAKE_SIZE);
+        _handshake.writeC0(out);
+        _handshake.writeC1(out); // Write C1 without waiting for S0
+        _handshakeOut = ByteBuffer.wrap(out.toByteArray());
+        _selectionKey.interestOps(SelectionKey.OP_READ);
+        WriteHandshake();
+    }
+
+    private void WriteHandshake() throws IOException {
+        _socketChannel.write(_handshakeOut);
+        if (_handshakeOut.hasRemaining()) {
+            _selectionKey.interestOps(_selectionKey.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            _selectionKey.interestOps(_selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+            if (_handshakeS2Read)
+                HandshakeComplete();
+        }
+    }
+
+    /** Consumes as much of S0/S1/S2 as has arrived in the inbound buffer (flipped) */
+    private void ReadHandshake() throws IOException {
+        if (!_handshakeS1Read && _inBuffer.remaining() >= 1 + Handshake.HANDSHAKE_SIZE) {
+            _handshake.readS0(_inStream);
+            _handshake.readS1(_inStream);
+            _handshakeS1Read = true;
+            ByteArrayOutputStream out = new ByteArrayOutputStream(_handshakeOut.remaining() + Handshake.HANDSHAKE_SIZE);
+            out.write(_handshakeOut.array(), _handshakeOut.position(), _handshakeOut.remaining());
+            _handshake.writeC2(out);
+            _handshakeOut = ByteBuffer.wrap(out.toByteArray());
+            WriteHandshake();
+        }
+        if (_handshakeS1Read && !_handshakeS2Read && _inBuffer.remaining() >= Handshake.HANDSHAKE_SIZE) {
+            _handshake.readS2(_inStream);
+            _handshakeS2Read = true;
+            // RTMP messages must not overtake the rest of C2
+            if (!_handshakeOut.hasRemaining())
+                HandshakeComplete();
+        }
+    }
+
+    private void HandshakeComplete() {
+        _handshake = null;
+        _handshakeOut = null;
+        _rtmpSessionInfo = new RtmpSessionInfo();
+        _transactionIDCounter = 0;
         _currentStreamMsgID = 0;
-        _streamID = 0;
-        _mainLoopNumSleep = 0;
-        _port = 0;
-        try {
-            _socket.close();
-            _socket = null;
+        _rtmpDecoder = new RtmpDecoder(_rtmpSessionInfo);
+        _sendStatsRecorder.reset(System.nanoTime());
+        _sendStats = null;
+        scheduleStatsTimer();
+        _tuneMessages = 0;
+        _tuneBytes = 0;
+        _requestedTxChunkSize = 0;
+        RequestTxChunkSize(_txChunkSize);
+        DrainSendQueue();
+        Connect();
+        _pipelinedBringUp = _fastStart;
+        _mispredictedStreamID = 0;
+        if (_pipelinedBringUp) {
+            // The server handles commands in order, so none has to wait for the previous result
+            PublishStream();
+            Publish(FAST_START_STREAM_ID);
+        }
+    }
 
-            _inputStream.close();
-            _inputStream = null;
+    private void HandleReadable() {
+        final int read;
+        try {
+            read = _socketChannel.read(_inBuffer);
+            if (read == -1)
+                throw new EOFException("Connection closed by server");
+        } catch (IOException e) {
+            Fail(_handshake != null ? ERROR.HANDSHAKE_FAIL : ERROR.RECEIVE_RTMP_FAIL, e.toString());
+            return;
+        }
+        if (_handshake != null) {
+            _inBuffer.flip();
+            try {
+                ReadHandshake();
+            } catch (Exception e) {
+                Fail(ERROR.HANDSHAKE_FAIL, e.toString());
+            }
+            if (_status == Status.NEW || _status == Status.FAIL)
+                return;
+            _inBuffer.compact();
+            if (_handshake != null)
+                return;
+        }
+        HandleInboundChunks();
+    }
 
-            _outputStream.close();
-            _outputStream = null;
+    /**
+     * Decodes whatever the inbound buffer holds; the decoder keeps partly
+     * received chunks itself, so the buffer is always emptied. Since the
+     * decoder state cannot be trusted after a failure, errors end the
+     * connection.
+     */
+    private void HandleInboundChunks() {
+        _inBuffer.flip();
+        try {
+            _rtmpDecoder.decode(_inBuffer, _packetRxHandler);
         } catch (Exception e) {
+            Fail(ERROR.RECEIVE_RTMP_FAIL, e.toString());
+            return;
+        }
+        if (_status == Status.NEW || _status == Status.FAIL)
+            return;
+        _inBuffer.clear();
+    }
+
+    /** Encodes the commands whose arguments only depend on the URL and stream name */
+    private void BuildCommandTemplates() {
+        AmfObject args = new AmfObject();
+        args.setProperty("app", _app);
+        args.setProperty("type", "nonprivate");
+        args.setProperty("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)");
+        args.setProperty("swfUrl", _rtmpUrl);
+        args.setProperty("tcUrl", _rtmpUrl);
+        if (_objectEncoding == OBJECT_ENCODING_AMF3) {
+            args.setProperty("objectEncoding", OBJECT_ENCODING_AMF3);
+        }
+        _connectTemplate = new CommandTemplate("connect", args);
+        AmfString argsChannelName = new AmfString(_channelName, false);
+        _releaseStreamTemplate = new CommandTemplate("releaseStream", new AmfNull(), argsChannelName);
+        _fcPublishTemplate = new CommandTemplate("FCPublish", new AmfNull(), argsChannelName);
+        _publishTemplate = new CommandTemplate("publish", new AmfNull(), argsChannelName, new AmfString("live", false));
+    }
+
+    private void Connect() {
+        _amf3Accepted = false;
+        Command connectCmd = _connectTemplate.newCommand(++_transactionIDCounter);
+        connectCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
+        connectCmd.getHeader().setAbsoluteTimestamp(0);
+        sendCommand(connectCmd);
+    }
+
+    private void PublishStream() {
+        // release stream first
+        Command releaseCmd = _releaseStreamTemplate.newCommand(++_transactionIDCounter);
+        releaseCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
+        releaseCmd.getHeader().setAbsoluteTimestamp(0);
+        sendCommand(releaseCmd);
+
+        // FCPublish stream
+        Command fcPublishCmd = _fcPublishTemplate.newCommand(++_transactionIDCounter);
+        fcPublishCmd.getHeader().setMessageStreamId(_currentStreamMsgID++);
+        fcPublishCmd.getHeader().setAbsoluteTimestamp(0);
+        sendCommand(fcPublishCmd);
+
+        // create Stream
+        Command createStream = CREATE_STREAM_TEMPLATE.newCommand(++_transactionIDCounter);
+        createStream.getHeader().setMessageStreamId(_currentStreamMsgID++);
+        createStream.getHeader().setAbsoluteTimestamp(0);
+        sendCommand(createStream);
+    }
+
+    private void Publish(int streamID) {
+        _streamID = streamID;
+        Command publishCommand = _publishTemplate.newCommand(++_transactionIDCounter);
+        publishCommand.getHeader().setAbsoluteTimestamp(0);
+        publishCommand.getHeader().setMessageStreamId(streamID);
+        sendCommand(publishCommand);
+    }
+
+    /** Registers the command's transaction (so that its result can be matched) and queues it for sending */
+    private void sendCommand(Command command) {
+        _rtmpSessionInfo.addInvokedCommand(command.getTransactionId(), command.getCommandName());
+        _commandPackets.addLast(command);
+        DrainSendQueue();
+    }
+
+    @Override
+    public void Release() {
+        _status = Status.NEW;
+        final RtmpEventLoop eventLoop = _eventLoop;
+        if (eventLoop != null) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CloseConnection();
+                    _eventLoop = null;
+                    _taskWorkers = null;
+                    _listener = null;
+                    _app = null;
+                    _host = null;
+                    _rtmpDecoder = null;
+                    _rtmpSessionInfo = null;
+                    _rtmpUrl = null;
+                    _channelName = null;
+                    _connectTemplate = null;
+                    _releaseStreamTemplate = null;
+                    _fcPublishTemplate = null;
+                    _publishTemplate = null;
+                    _currentStreamMsgID = 0;
+                    _streamID = 0;
+                    _port = 0;
+                }
+            });
+        }
+    }
+
+    /** Reports the error and closes the connection; event loop only */
+    private void Fail(ERROR error, String msg) {
+        if (_status == Status.NEW || _status == Status.FAIL)
+            return;
+        _status = Status.FAIL;
+        CloseConnection();
+        _listener.onError(error, msg);
+    }
+
+    /** Closes the socket and releases everything that will not be sent anymore; event loop only */
+    private void CloseConnection() {
+        if (_selectionKey != null)
+            _selectionKey.cancel();
+        try {
+            if (_socketChannel != null)
+                _socketChannel.close();
+        } catch (IOException e) {
             //ignore
-        } finally {
-            _status = Status.NEW;
         }
+        _selectionKey = null;
+        _socketChannel = null;
+        _chunkWriter = null;
+        _inBuffer = null;
+        _inStream = null;
+        _handshake = null;
+        _handshakeOut = null;
+        _writeBlocked = false;
+        _controlPackets.clear();
+        _commandPackets.clear();
+        DiscardQueuedPackets();
+        if (_rtmpSessionInfo != null)
+            _rtmpSessionInfo.clearRxStoredChunks();
+    }
+
+    @Override
+    public int GetQueuedFrames() {
+        SendQueue audioQueue = _audioQueue;
+        SendQueue videoQueue = _videoQueue;
+        return audioQueue != null ? audioQueue.getQueuedFrames() + videoQueue.getQueuedFrames() : 0;
+    }
+
+    @Override
+    public long GetQueuedBytes() {
+        SendQueue audioQueue = _audioQueue;
+        SendQueue videoQueue = _videoQueue;
+        return audioQueue != null ? audioQueue.getQueuedBytes() + videoQueue.getQueuedBytes() : 0;
     }
 
     @Override
     public void SetupMetaData(final int height, final int weight, final int videoCodecID, final int videoDataRate,final int frameRate, final int audioCodecID, final int audioDataRate, final int sampleRate, final int channelCount, final int audioConfig, final byte[] SPSBytes, final byte[] PPSBytes) {
-        _taskWorkers.submit(new Runnable() {
-            @Override
-            public void run() {
-                // send meta information to rtmp server
-                Data metaData = new Data("@setDataFrame");
-                metaData.getHeader().setMessageStreamId(_streamID);
-                metaData.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
-                AmfString args1 = new AmfString("onMetaData", false);
-                AmfMap args2 = new AmfMap();
-                args2.setProperty("width", weight);
-                args2.setProperty("height", height);
-                args2.setProperty("videocodecid", "avc1");
-                args2.setProperty("framerate", frameRate);
-                args2.setProperty("audiocodecid", "mp4a");
-                args2.setProperty("stereo", 1);
-                args2.setProperty("audiosamplerate", sampleRate);
-                args2.setProperty("audiosamplesize", 16);
-                metaData.addData(args1);
-                metaData.addData(args2);
-                try {
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
-                    metaData.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.SEND_META_DATA_FAIL, e.toString());
-                }
+        // send meta information to rtmp server
+        Data metaData = new Data("@setDataFrame");
+        if (_amf3Accepted) {
+            metaData.getHeader().setMessageType(RtmpHeader.MessageType.DATA_AMF3);
+        }
+        metaData.getHeader().setChunkStreamId(ChunkStreamInfo.RTMP_STREAM_CHANNEL);
+        AmfString args1 = new AmfString("onMetaData", false);
+        AmfMap args2 = new AmfMap();
+        args2.setProperty("width", weight);
+        args2.setProperty("height", height);
+        args2.setProperty("videocodecid", "avc1");
+        args2.setProperty("framerate", frameRate);
+        args2.setProperty("audiocodecid", "mp4a");
+        args2.setProperty("stereo", 1);
+        args2.setProperty("audiosamplerate", sampleRate);
+        args2.setProperty("audiosamplesize", 16);
+        metaData.addData(args1);
+        metaData.addData(args2);
+        enqueuePacket(metaData, NO_TIMESTAMP);
 
-                // send audio metadata to rtmp server
-                Audio audio = new Audio();
-                audio.getHeader().setMessageStreamId(_streamID);
-                byte[] audioHeader = new byte[4];
-                audioHeader[0] = (byte) 0xaf;
-                audioHeader[1] = (byte) 0x00;
-                audioHeader[2] = (byte) (0x15);
-                audioHeader[3] = (byte) (0x88);
-                audio.setData(audioHeader, 4);
-                try {
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                    audio.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.SEND_AUDIO_HEADER_FAIL, e.toString());
-                }
+        // send audio metadata to rtmp server
+        Audio audio = new Audio();
+        byte[] audioHeader = new byte[4];
+        audioHeader[0] = (byte) 0xaf;
+        audioHeader[1] = (byte) 0x00;
+        audioHeader[2] = (byte) (0x15);
+        audioHeader[3] = (byte) (0x88);
+        audio.setData(audioHeader, 4);
+        enqueuePacket(audio, NO_TIMESTAMP);
 
-                // send video metadata to rtmp server
-                Video video = new Video();
-                video.getHeader().setMessageStreamId(_streamID);
-                byte[] videoHeader = new byte[11 + 2 + SPSBytes.length + 1 +  2 + PPSBytes.length];
-                videoHeader[0]  = (byte) 0x17;
-                videoHeader[1] = (byte) 0x00;
-                videoHeader[2] = (byte) 0x00;videoHeader[3] = (byte) 0x00;videoHeader[4] = (byte) 0x00;
-                videoHeader[5] = (byte) 0x01;
-                videoHeader[6] = SPSBytes[1];
-                videoHeader[7] = SPSBytes[2];
-                videoHeader[8] = SPSBytes[3];
-                videoHeader[9] = (byte) 0xff;
-                videoHeader[10] = (byte) 0xe1;
-                byte[] length;
-                length = ByteBuffer.allocate(2).putShort((short) SPSBytes.length).array();
-                System.arraycopy(length, 0, videoHeader, 11, 2);
-                System.arraycopy(SPSBytes, 0, videoHeader, 13, SPSBytes.length);
-                videoHeader[13 + SPSBytes.length] = (byte)0x01;
-                length = ByteBuffer.allocate(2).putShort((short)PPSBytes.length).array();
-                System.arraycopy(length, 0, videoHeader, 14 + SPSBytes.length, 2);
-                System.arraycopy(PPSBytes, 0, videoHeader, 16 + SPSBytes.length, PPSBytes.length);
-
-                video.setData(videoHeader, 11 + 2 + SPSBytes.length + 1 + 2 + PPSBytes.length);
-                try {
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                    video.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.SEND_VIDEO_HEADER_FAIL, e.toString());
-                }
-            }
-        });
+        // send video metadata to rtmp server
+        Video video = new Video();
+        byte[] videoHeader = new byte[11 + 2 + SPSBytes.length + 1 +  2 + PPSBytes.length];
+        videoHeader[0]  = (byte) 0x17;
+        videoHeader[1] = (byte) 0x00;
+        videoHeader[2] = (byte) 0x00;videoHeader[3] = (byte) 0x00;videoHeader[4] = (byte) 0x00;
+        videoHeader[5] = (byte) 0x01;
+        videoHeader[6] = SPSBytes[1];
+        videoHeader[7] = SPSBytes[2];
+        videoHeader[8] = SPSBytes[3];
+        videoHeader[9] = (byte) 0xff;
+        videoHeader[10] = (byte) 0xe1;
+        byte[] length;
+        length = ByteBuffer.allocate(2).putShort((short) SPSBytes.length).array();
+        System.arraycopy(length, 0, videoHeader, 11, 2);
+        System.arraycopy(SPSBytes, 0, videoHeader, 13, SPSBytes.length);
+        videoHeader[13 + SPSBytes.length] = (byte)0x01;
+        length = ByteBuffer.allocate(2).putShort((short)PPSBytes.length).array();
+        System.arraycopy(length, 0, videoHeader, 14 + SPSBytes.length, 2);
+        System.arraycopy(PPSBytes, 0, videoHeader, 16 + SPSBytes.length, PPSBytes.length);
+
+        video.setData(videoHeader, 11 + 2 + SPSBytes.length + 1 + 2 + PPSBytes.length);
+        enqueuePacket(video, NO_TIMESTAMP);
     }
 
     @Override
-    public void SendData(final MediaType type, final byte[] data, final int length, final long timestamp) {
-        _taskWorkers.submit(new Runnable() {
-            @Override
-            public void run() {
-                ContentData packet;
-                if(type == MediaType.AACADTS || type == MediaType.AACLATM) {
-                    //audio
-                    packet = new Audio();
-                    byte[] packetData = new byte[2 + length];
-                    packetData[0] = (byte) 0xaf;
-                    packetData[1] = (byte) 0x01;
-                    System.arraycopy(data, 0, packetData, 2, length);
-                    packet.setData(packetData, length + 2);
-                } else {
-                    //video
-                    packet = new Video();
-                    byte[] packetData= new byte[5 + length];
-                    if(type == MediaType.H264_KEY)
-                        packetData[0] = 0x17;
-                    else
-                        packetData[0] = 0x27;
-                    packetData[1] = 0x01;
-                    packetData[2] = 0x00;packetData[3] = 0x00;packetData[4] = 0x00;
-                    System.arraycopy(data, 0, packetData, 5, length);
-                    packet.setData(packetData, 5 + length);
-                }
-                try {
-                    packet.getHeader().setMessageStreamId(_streamID);
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                    if(_rtmpSessionInfo.getMarkAbsoluteTimestamp() == 0 && timestamp != 0)
-                        _rtmpSessionInfo.setMarkAbsoluteTimestamp(timestamp);
-                    packet.getHeader().setAbsoluteTimestamp((int) (timestamp - _rtmpSessionInfo.getMarkAbsoluteTimestamp()));
-                    packet.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.SEND_DATA_FAIL, e.toString());
-                }
+    public void SendData(MediaType type, byte[] data, int length, long timestamp) {
+        SendData(type, data, 0, length, timestamp);
+    }
+
+    @Override
+    public void SendData(MediaType type, byte[] data, int offset, int length, long timestamp) {
+        SendData(type, ByteBuffer.wrap(data, offset, length), timestamp);
+    }
+
+    @Override
+    public void SendData(MediaType type, ByteBuffer data, long timestamp) {
+        ContentData packet = obtainMediaPacket(type);
+        packet.setData(data);
+        enqueuePacket(packet, timestamp);
+    }
+
+    @Override
+    public void SendData(MediaType type, FrameBuffer frame, long timestamp) {
+        ContentData packet = obtainMediaPacket(type);
+        packet.setData(frame);
+        enqueuePacket(packet, timestamp);
+    }
+
+    private ContentData obtainMediaPacket(MediaType type) {
+        ContentData packet;
+        if(type == MediaType.AACADTS || type == MediaType.AACLATM) {
+            //audio
+            synchronized (_audioPacketPool) {
+                packet = _audioPacketPool.poll();
             }
-        });
+            if (packet == null)
+                packet = new Audio();
+            packet.setTagHeader(AAC_RAW_TAG_HEADER);
+        } else {
+            //video
+            synchronized (_videoPacketPool) {
+                packet = _videoPacketPool.poll();
+            }
+            if (packet == null)
+                packet = new Video();
+            packet.setTagHeader(type == MediaType.H264_KEY ? AVC_KEY_NALU_TAG_HEADER : AVC_INTER_NALU_TAG_HEADER);
+        }
+        return packet;
+    }
+
+    private void recycleMediaPacket(ContentData packet) {
+        packet.recycle();
+        if (packet instanceof Audio) {
+            synchronized (_audioPacketPool) {
+                _audioPacketPool.push((Audio) packet);
+            }
+        } else if (packet instanceof Video) {
+            synchronized (_videoPacketPool) {
+                _videoPacketPool.push((Video) packet);
+            }
+        }
     }
 
     @Override
@@ -384,66 +724,618 @@ public class RTMPConnection implements RTMPPublisher {
         }
         if(packet != null) {
             packet.setData(data, length);
-            packet.getHeader().setMessageStreamId(_streamID);
-            try {
-                final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                if(_rtmpSessionInfo.getMarkAbsoluteTimestamp() == 0 && timestamp != 0)
-                    _rtmpSessionInfo.setMarkAbsoluteTimestamp(timestamp);
-                packet.getHeader().setAbsoluteTimestamp((int) (timestamp - _rtmpSessionInfo.getMarkAbsoluteTimestamp()));
-                packet.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-            } catch (Exception e) {
-                _status = Status.FAIL;
-                _listener.onError(ERROR.SEND_DATA_FAIL, e.toString());
-                e.printStackTrace();
+            enqueuePacket(packet, timestamp);
+        }
+    }
+
+    /**
+     * Queues a packet for the event loop. Packets of a priority class are
+     * written in the order they were queued; if the class's queue is full the
+     * caller waits for room, unless the drop policy lets the packet be dropped.
+     *
+     * @param timestamp the raw media timestamp, or NO_TIMESTAMP if the header is already stamped
+     */
+    private void enqueuePacket(RtmpPacket packet, long timestamp) {
+        final int size = packet instanceof ContentData ? ((ContentData) packet).getBodySize() : 0;
+        final boolean keyFrame = isDroppableVideo(packet, timestamp) && ((Video) packet).isKeyFrame();
+        if (isDroppableVideo(packet, timestamp) && !AdmitVideo((Video) packet, size)) {
+            _sendStatsRecorder.onFrameDropped();
+            recycleMediaPacket((ContentData) packet);
+            return;
+        }
+        final SendQueue queue = packet instanceof Video ? _videoQueue : _audioQueue;
+        while (!queue.offer(packet, timestamp, size)) {
+            final RtmpEventLoop eventLoop = _eventLoop;
+            if (_status == Status.NEW || _status == Status.FAIL || (eventLoop != null && eventLoop.inEventLoop())) {
+                // The loop cannot wait for itself to make room; drop the frame
+                if (packet instanceof ContentData)
+                    recycleMediaPacket((ContentData) packet);
+                return;
+            }
+            if (!keyFrame && isDroppableVideo(packet, timestamp) && _dropPolicy.isEnabled()) {
+                StartDroppingQueuedGop();
+                _sendStatsRecorder.onFrameDropped();
+                recycleMediaPacket((ContentData) packet);
+                return;
             }
+            LockSupport.parkNanos(SEND_QUEUE_FULL_PARK_NS);
         }
+        if (keyFrame)
+            _queuedKeyFrames.incrementAndGet();
+        scheduleDrain();
     }
 
-    private void MainHandlerLoopFunction() {
-        try {
-            RtmpPacket packet = _rtmpDecoder.readPacket(_inputStream);
-            if (packet != null) {
-                switch (packet.getHeader().getMessageType()) {
-                    case WINDOW_ACKNOWLEDGEMENT_SIZE: {
-                        WindowAckSize windowAckSize = (WindowAckSize) packet;
-                        _rtmpSessionInfo.setAcknowledgmentWindowSize(windowAckSize.getAcknowledgementWindowSize());
-                        break;
-                    }
-                    case SET_PEER_BANDWIDTH: {
-                        break;
+    /** @return <code>true</code> for media video frames the drop policy applies to (sequence headers never are) */
+    private static boolean isDroppableVideo(RtmpPacket packet, long timestamp) {
+        return packet instanceof Video && timestamp != NO_TIMESTAMP && !((Video) packet).isSequenceHeader();
+    }
+
+    /** Producer side of the drop policy; @return <code>false</code> if the frame must be dropped */
+    private boolean AdmitVideo(Video video, int size) {
+        final DropPolicy dropPolicy = _dropPolicy;
+        if (!dropPolicy.isEnabled())
+            return true;
+        if (video.isKeyFrame()) {
+            _droppingQueuedGop = false;
+            return true;
+        }
+        if (_droppingQueuedGop)
+            return false;
+        final boolean full = _videoQueue.getQueuedFrames() >= _videoQueue.getCapacity()
+                || (dropPolicy.getMaxQueuedBytes() > 0 && _videoQueue.getQueuedBytes() + size > dropPolicy.getMaxQueuedBytes());
+        if (full) {
+            StartDroppingQueuedGop();
+            return false;
+        }
+        return true;
+    }
+
+    private void StartDroppingQueuedGop() {
+        _droppingQueuedGop = true;
+        RequestKeyFrame();
+    }
+
+    /**
+     * Event loop side of the drop policy, applied to each video frame taken
+     * from the queue; @return <code>true</code> if the frame must be dropped
+     */
+    private boolean DropQueuedVideo(Video video, long enqueueTimeNs) {
+        final DropPolicy dropPolicy = _dropPolicy;
+        final boolean stale = dropPolicy.isStale(enqueueTimeNs, System.nanoTime());
+        if (video.isKeyFrame()) {
+            // A stale key frame is only worth skipping if a newer one is already queued
+            if (stale && dropPolicy.isEnabled() && _queuedKeyFrames.get() > 0) {
+                _droppingStaleGop = true;
+                return true;
+            }
+            _droppingStaleGop = false;
+            _keyFrameRequested.set(false);
+            return false;
+        }
+        if (!dropPolicy.isEnabled())
+            return false;
+        if (_droppingStaleGop)
+            return true;
+        if (stale) {
+            _droppingStaleGop = true;
+            RequestKeyFrame();
+            return true;
+        }
+        return false;
+    }
+
+    private void RequestKeyFrame() {
+        final RTMPPublisherListener listener = _listener;
+        if (listener instanceof KeyFrameRequestListener && _keyFrameRequested.compareAndSet(false, true))
+            ((KeyFrameRequestListener) listener).onKeyFrameRequest();
+    }
+
+    /** Sets which video frames may be dropped when the uplink falls behind; see {@link DropPolicy} */
+    public void SetDropPolicy(DropPolicy dropPolicy) {
+        _dropPolicy = dropPolicy != null ? dropPolicy : DropPolicy.NEVER;
+    }
+
+    /** Sends a protocol control message produced on the event loop ahead of everything else */
+    private void enqueueControlPacket(RtmpPacket packet) {
+        _controlPackets.addLast(packet);
+        DrainSendQueue();
+    }
+
+    private void scheduleDrain() {
+        final RtmpEventLoop eventLoop = _eventLoop;
+        if (eventLoop != null && _drainScheduled.compareAndSet(false, true))
+            eventLoop.execute(_drainTask);
+    }
+
+    /**
+     * Moves queued packets to the chunk writer and flushes them according to
+     * the flush policy; event loop only
+     *
+     * Packets are taken by priority class: control messages, commands, audio
+     * (and data messages), video. Only control messages and commands are sent
+     * before the publish status confirms the stream. Video messages larger than a chunk are
+     * queued chunk by chunk and the higher classes are checked again before
+     * each chunk, so neither control messages nor audio wait for a large key
+     * frame; at most VIDEO_CHUNK_INTERLEAVE_BYTES of it are ahead of them.
+     */
+    private void DrainSendQueue() {
+        if (_status == Status.NEW || _status == Status.FAIL) {
+            DiscardQueuedPackets();
+            return;
+        }
+        if (_rtmpSessionInfo == null || _handshake != null || _writeBlocked)
+            return; // not connected yet, or the socket is full; draining resumes later
+        final long batchEnd = _chunkWriter.getTotalBytes() + DRAIN_BATCH_BYTES;
+        while (true) {
+            if (_chunkWriter.getTotalBytes() >= batchEnd) {
+                scheduleDrain();
+                break;
+            }
+            RtmpPacket packet = _controlPackets.pollFirst();
+            if (packet == null)
+                packet = _commandPackets.pollFirst();
+            long timestamp = NO_TIMESTAMP;
+            long enqueueTimeNs = 0;
+            if (packet == null) {
+                if (_status != Status.READY)
+                    break; // media waits until the stream is published; the publish status drains it
+                if (_chunkedVideo == null && _rtmpSessionInfo.isPeerBandwidthExceeded(Handshake.CLIENT_HANDSHAKE_BYTES + _chunkWriter.getTotalBytes())) {
+                    // Resumes when the peer acknowledges, which it can only do for data it received;
+                    // a message in progress is finished first, as peers may acknowledge whole messages only
+                    _sendStatsRecorder.onCongested();
+                    if (_chunkWriter.getPendingBytes() > 0)
+                        flushPendingPackets();
+                    return;
+                }
+                SendQueue queue = _audioQueue;
+                packet = queue.peek();
+                if (packet == null) {
+                    if (_chunkedVideo != null) {
+                        // Video messages on the same chunk stream must not be interleaved
+                        if (!AppendVideoChunk())
+                            return;
+                        continue;
                     }
-                    case USER_CONTROL_MESSAGE: {
-                        HandleUserControlMessage((UserControl) packet);
+                    queue = _videoQueue;
+                    packet = queue.peek();
+                    if (packet == null)
                         break;
+                }
+                timestamp = queue.peekTimestamp();
+                enqueueTimeNs = queue.peekEnqueueTime();
+                queue.remove();
+                if (isDroppableVideo(packet, timestamp)) {
+                    if (((Video) packet).isKeyFrame())
+                        _queuedKeyFrames.decrementAndGet();
+                    if (DropQueuedVideo((Video) packet, enqueueTimeNs)) {
+                        _sendStatsRecorder.onFrameDropped();
+                        recycleMediaPacket((ContentData) packet);
+                        continue;
                     }
-                    case COMMAND_AMF0: {
-                        HandleCommandMessage((Command) packet);
-                        break;
+                }
+                if (packet instanceof Video && timestamp != NO_TIMESTAMP
+                        && ((Video) packet).getBodySize() > _rtmpSessionInfo.getTxChunkSize()) {
+                    try {
+                        BeginChunkedVideo((Video) packet, timestamp, enqueueTimeNs);
+                    } catch (Exception e) {
+                        recycleMediaPacket((ContentData) packet);
+                        Fail(errorForFailedPacket(packet), e.toString());
+                        return;
                     }
+                    continue;
                 }
             }
+            try {
+                appendPacket(packet, timestamp);
+            } catch (Exception e) {
+                if (packet instanceof ContentData)
+                    recycleMediaPacket((ContentData) packet);
+                Fail(errorForFailedPacket(packet), e.toString());
+                return;
+            }
+            if (!PacketAppended(packet, enqueueTimeNs))
+                return;
+        }
+        if (!_unflushedPackets.isEmpty() && !_flushTimerScheduled) {
+            // Nothing else to coalesce with yet; flush at the policy's deadline at the latest
+            _flushTimerScheduled = true;
+            final long remainingNs = _pendingSinceNs + _flushPolicy.getMaxDelayMs() * 1000000L - System.nanoTime();
+            _eventLoop.schedule(_flushTimerTask, Math.max(0, remainingNs), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Adds a fully appended packet to the unflushed ones and flushes according
+     * to the flush policy; @return <code>false</code> if draining must stop
+     */
+    private boolean PacketAppended(RtmpPacket packet, long enqueueTimeNs) {
+        if (_unflushedPackets.isEmpty())
+            _pendingSinceNs = System.nanoTime();
+        if (_unflushedPackets.size() == _unflushedEnqueueTimes.length)
+            _unflushedEnqueueTimes = Arrays.copyOf(_unflushedEnqueueTimes, _unflushedEnqueueTimes.length * 2);
+        _unflushedEnqueueTimes[_unflushedPackets.size()] = packet instanceof ContentData ? enqueueTimeNs : 0;
+        _unflushedPackets.addLast(packet);
+        // Control messages and commands never wait for more data
+        final boolean isMedia = packet instanceof ContentData;
+        final boolean keyFrame = packet instanceof Video && ((Video) packet).isKeyFrame();
+        final long pendingMs = (System.nanoTime() - _pendingSinceNs) / 1000000L;
+        if (!isMedia || _flushPolicy.shouldFlush(keyFrame, _chunkWriter.getPendingBytes(), pendingMs))
+            return flushPendingPackets();
+        return true;
+    }
+
+    private void BeginChunkedVideo(Video video, long timestamp, long enqueueTimeNs) throws IOException {
+        final ChunkStreamInfo chunkStreamInfo = stampHeader(video, timestamp);
+        video.beginAppend(_chunkWriter, _chunkedVideoCursor, chunkStreamInfo);
+        _chunkedVideo = video;
+        _chunkedVideoEnqueueTimeNs = enqueueTimeNs;
+        if (_autoTuneChunkSize)
+            TuneChunkSize(video.getHeader().getPacketLength());
+    }
+
+    /**
+     * Appends the next chunk of the video message in progress, flushing every
+     * VIDEO_CHUNK_INTERLEAVE_BYTES; @return <code>false</code> if draining must stop
+     */
+    private boolean AppendVideoChunk() {
+        final Video video = _chunkedVideo;
+        final boolean lastChunk;
+        try {
+            lastChunk = _chunkWriter.appendChunk(_chunkedVideoCursor, _rtmpSessionInfo.getTxChunkSize());
         } catch (Exception e) {
-            //ignore
+            Fail(errorForFailedPacket(video), e.toString());
+            return false;
+        }
+        if (lastChunk) {
+            _chunkedVideo = null;
+            _chunkedVideoCursor.clear();
+            return PacketAppended(video, _chunkedVideoEnqueueTimeNs);
+        }
+        if (_chunkWriter.getPendingBytes() >= VIDEO_CHUNK_INTERLEAVE_BYTES)
+            return flushPendingPackets();
+        return true;
+    }
+
+    private void FlushIfDue() {
+        if (_unflushedPackets.isEmpty() || _writeBlocked || _status == Status.NEW || _status == Status.FAIL)
+            return;
+        final long remainingNs = _pendingSinceNs + _flushPolicy.getMaxDelayMs() * 1000000L - System.nanoTime();
+        if (remainingNs > 0) {
+            _flushTimerScheduled = true;
+            _eventLoop.schedule(_flushTimerTask, remainingNs, TimeUnit.NANOSECONDS);
+        } else if (flushPendingPackets()) {
+            DrainSendQueue();
+        }
+    }
+
+    /**
+     * Sets the stream of a media or data packet, including sequence headers
+     * and metadata, which carry no timestamp of their own, and the timestamp
+     * of a media packet; @return the info of the chunk stream it goes on
+     */
+    private ChunkStreamInfo stampHeader(RtmpPacket packet, long timestamp) {
+        RtmpHeader header = packet.getHeader();
+        // The stream ID is only known on the event loop, and is final once the publish status arrived
+        if (packet instanceof ContentData || header.getChunkStreamId() == ChunkStreamInfo.RTMP_STREAM_CHANNEL)
+            header.setMessageStreamId(_streamID);
+        if (timestamp != NO_TIMESTAMP) {
+            if(_rtmpSessionInfo.getMarkAbsoluteTimestamp() == 0 && timestamp != 0)
+                _rtmpSessionInfo.setMarkAbsoluteTimestamp(timestamp);
+            header.setAbsoluteTimestamp((int) (timestamp - _rtmpSessionInfo.getMarkAbsoluteTimestamp()));
+        }
+        return _rtmpSessionInfo.getTxChunkStreamInfo(header.getChunkStreamId());
+    }
+
+    private void appendPacket(RtmpPacket packet, long timestamp) throws IOException {
+        final RtmpHeader header = packet.getHeader();
+        final ChunkStreamInfo chunkStreamInfo = stampHeader(packet, timestamp);
+        packet.appendTo(_chunkWriter, _rtmpSessionInfo.getTxChunkSize(), chunkStreamInfo);
+        if (packet instanceof SetChunkSize) {
+            // Everything after it on the wire is chunked with the new size
+            _rtmpSessionInfo.setTxChunkSize(((SetChunkSize) packet).getChunkSize());
+        } else if (timestamp != NO_TIMESTAMP && _autoTuneChunkSize) {
+            TuneChunkSize(header.getPacketLength());
+        }
+    }
+
+    /** Queues a Set Chunk Size message if the size differs from the one last requested; event loop only */
+    private void RequestTxChunkSize(int chunkSize) {
+        if (chunkSize == _requestedTxChunkSize)
+            return;
+        _requestedTxChunkSize = chunkSize;
+        // Picked up by the drain loop before the next queued packet
+        _controlPackets.addLast(new SetChunkSize(chunkSize));
+    }
+
+    /**
+     * Picks the outbound chunk size from the average media message size, so
+     * that a typical message goes out in a single chunk; grows right away but
+     * only shrinks when messages got a lot smaller. Event loop only.
+     */
+    private void TuneChunkSize(int messageSize) {
+        _tuneBytes += messageSize;
+        if (++_tuneMessages < CHUNK_SIZE_TUNE_WINDOW)
+            return;
+        final int averageSize = (int) (_tuneBytes / _tuneMessages);
+        _tuneMessages = 0;
+        _tuneBytes = 0;
+        int chunkSize = RtmpSessionInfo.DEFAULT_CHUNK_SIZE;
+        while (chunkSize < averageSize && chunkSize < MAX_TUNED_CHUNK_SIZE)
+            chunkSize <<= 1;
+        if (chunkSize > _requestedTxChunkSize || chunkSize * 4 <= _requestedTxChunkSize)
+            RequestTxChunkSize(chunkSize);
+    }
+
+    /**
+     * Sets the outbound chunk size, up to {@link RtmpSessionInfo#MAX_CHUNK_SIZE},
+     * and stops auto-tuning it. Before connecting this is the size announced
+     * after the handshake (4096 by default); on an established connection a
+     * Set Chunk Size message is sent ahead of the queued media.
+     */
+    public void SetTxChunkSize(int chunkSize) {
+        _txChunkSize = Math.max(1, Math.min(chunkSize, RtmpSessionInfo.MAX_CHUNK_SIZE));
+        _autoTuneChunkSize = false;
+        final RtmpEventLoop eventLoop = _eventLoop;
+        if (eventLoop != null) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (_rtmpSessionInfo == null || _handshake != null || _status == Status.NEW || _status == Status.FAIL)
+                        return; // announced once the handshake completes
+                    RequestTxChunkSize(_txChunkSize);
+                    DrainSendQueue();
+                }
+            });
+        }
+    }
+
+    /**
+     * Lets the next connections send releaseStream, FCPublish, createStream
+     * and publish right after connect, without waiting for any result, so
+     * that publishing starts about one round trip after the handshake. The
+     * publish goes to the stream ID servers give the first stream they
+     * create; if the server gives another one, publish is sent again on it.
+     * Only for servers that accept commands ahead of the connect result.
+     */
+    public void SetFastStart(boolean fastStart) {
+        _fastStart = fastStart;
+    }
+
+    /**
+     * Sets the object encoding requested in the connect command, either
+     * {@link #OBJECT_ENCODING_AMF0} (the default) or {@link #OBJECT_ENCODING_AMF3};
+     * takes effect with the next {@link #Init}. If the server accepts AMF3,
+     * data messages such as the metadata are sent AMF3 encoded.
+     */
+    public void SetObjectEncoding(int objectEncoding) {
+        if (objectEncoding != OBJECT_ENCODING_AMF0 && objectEncoding != OBJECT_ENCODING_AMF3) {
+            throw new IllegalArgumentException("Unsupported object encoding: " + objectEncoding);
+        }
+        _objectEncoding = objectEncoding;
+    }
+
+    /**
+     * Lets the connection change the outbound chunk size during the session as
+     * the media message sizes change: larger chunks for high bitrate video cut
+     * header overhead, smaller ones keep short messages from waiting behind
+     * long chunks. Starts from the size set with {@link #SetTxChunkSize(int)}.
+     */
+    public void SetAutoTuneChunkSize(boolean autoTune) {
+        _autoTuneChunkSize = autoTune;
+    }
+
+    /**
+     * Writes everything appended so far and recycles the packets it referenced
+     *
+     * @return <code>false</code> if the socket could not take everything; the
+     * rest is written once it becomes writable
+     */
+    private boolean flushPendingPackets() {
+        try {
+            if (!_chunkWriter.flush()) {
+                _writeBlocked = true;
+                _sendStatsRecorder.onCongested();
+                _selectionKey.interestOps(_selectionKey.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+        } catch (Exception e) {
+            Fail(errorForFailedPacket(_unflushedPackets.peekLast()), e.toString());
+            return false;
+        }
+        final long nowNs = System.nanoTime();
+        for (int i = 0; i < _unflushedPackets.size(); i++) {
+            if (_unflushedEnqueueTimes[i] != 0)
+                _sendStatsRecorder.onFrameWritten(_unflushedEnqueueTimes[i], nowNs);
+        }
+        recycleUnflushedPackets();
+        return true;
+    }
+
+    private void HandleWritable() {
+        if (_handshake != null) {
+            try {
+                WriteHandshake();
+            } catch (Exception e) {
+                Fail(ERROR.HANDSHAKE_FAIL, e.toString());
+                return;
+            }
+            // Messages that arrived while the rest of C2 was pending
+            if (_handshake == null && _status != Status.NEW && _status != Status.FAIL && _inBuffer.position() > 0)
+                HandleInboundChunks();
+            return;
+        }
+        _writeBlocked = false;
+        _selectionKey.interestOps(_selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+        if (flushPendingPackets())
+            DrainSendQueue();
+    }
+
+    private void recycleUnflushedPackets() {
+        RtmpPacket packet;
+        while ((packet = _unflushedPackets.pollFirst()) != null) {
+            if (packet instanceof ContentData)
+                recycleMediaPacket((ContentData) packet);
+        }
+    }
+
+    /** Releases the frames that will not be sent anymore */
+    private void DiscardQueuedPackets() {
+        recycleUnflushedPackets();
+        if (_chunkedVideo != null) {
+            recycleMediaPacket(_chunkedVideo);
+            _chunkedVideo = null;
+            _chunkedVideoCursor.clear();
+        }
+        for (SendQueue queue : new SendQueue[]{_audioQueue, _videoQueue}) {
+            RtmpPacket packet;
+            while ((packet = queue.peek()) != null) {
+                if (isDroppableVideo(packet, queue.peekTimestamp()) && ((Video) packet).isKeyFrame())
+                    _queuedKeyFrames.decrementAndGet();
+                queue.remove();
+                if (packet instanceof ContentData)
+                    recycleMediaPacket((ContentData) packet);
+            }
+        }
+    }
+
+    /**
+     * Sets how media messages are coalesced into socket writes; takes effect
+     * with the next message. The default is {@link FlushPolicy#IMMEDIATE}.
+     */
+    public void SetFlushPolicy(FlushPolicy flushPolicy) {
+        _flushPolicy = flushPolicy != null ? flushPolicy : FlushPolicy.IMMEDIATE;
+        final RtmpEventLoop eventLoop = _eventLoop;
+        if (eventLoop != null) {
+            // Re-evaluate what is pending under the new policy
+            eventLoop.execute(_flushTimerTask);
+        }
+    }
+
+    /**
+     * Sets how often {@link SendStatsListener#onSendStats(SendStats)} is
+     * called while connected; 0 stops the reports. The default is every second.
+     */
+    public void SetStatsInterval(int intervalMs) {
+        _statsIntervalMs = Math.max(0, intervalMs);
+        final RtmpEventLoop eventLoop = _eventLoop;
+        if (eventLoop != null) {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleStatsTimer();
+                }
+            });
+        }
+    }
+
+    @Override
+    public SendStats GetSendStats() {
+        return _sendStats;
+    }
+
+    private void scheduleStatsTimer() {
+        final int intervalMs = _statsIntervalMs;
+        if (intervalMs > 0 && !_statsTimerScheduled && _rtmpSessionInfo != null
+                && _status != Status.NEW && _status != Status.FAIL) {
+            _statsTimerScheduled = true;
+            _eventLoop.schedule(_statsTimerTask, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Ends the current stats interval and hands its snapshot to the listener; event loop only */
+    private void ReportSendStats() {
+        if (_chunkWriter == null || _status == Status.NEW || _status == Status.FAIL || _statsIntervalMs <= 0)
+            return;
+        final long bytesSent = _chunkWriter.getTotalBytes() - _chunkWriter.getPendingBytes();
+        final SendStats stats = _sendStatsRecorder.takeSnapshot(System.nanoTime(), bytesSent,
+                GetQueuedFrames(), GetQueuedBytes());
+        _sendStats = stats;
+        if (_listener instanceof SendStatsListener)
+            ((SendStatsListener) _listener).onSendStats(stats);
+        scheduleStatsTimer();
+    }
+
+    private static ERROR errorForFailedPacket(RtmpPacket packet) {
+        switch (packet.getHeader().getMessageType()) {
+            case SET_CHUNK_SIZE:
+                return ERROR.SET_CHUNK_SIZE_FAIL;
+            case USER_CONTROL_MESSAGE:
+                return ERROR.RECEIVE_RTMP_FAIL;
+            case DATA_AMF0:
+            case DATA_AMF3:
+                return packet instanceof Data ? ERROR.SEND_META_DATA_FAIL : ERROR.SEND_DATA_FAIL;
+            case COMMAND_AMF0:
+            case COMMAND_AMF3: {
+                String commandName = ((Command) packet).getCommandName();
+                if ("connect".equals(commandName))
+                    return ERROR.CONNECT_CMD_FAIL;
+                else if ("releaseStream".equals(commandName))
+                    return ERROR.RELEASE_CMD_FAIL;
+                else if ("FCPublish".equals(commandName))
+                    return ERROR.FCPUBLISH_CMD_FAIL;
+                else if ("createStream".equals(commandName))
+                    return ERROR.CREATE_STREAM_CMD_FAIL;
+                else if ("publish".equals(commandName))
+                    return ERROR.PUBLISH_CMD_FAIL;
+                return ERROR.SEND_DATA_FAIL;
+            }
+            default:
+                return ERROR.SEND_DATA_FAIL;
+        }
+    }
+
+    private void HandleRxPacket(RtmpPacket packet) {
+        switch (packet.getHeader().getMessageType()) {
+            case WINDOW_ACKNOWLEDGEMENT_SIZE: {
+                WindowAckSize windowAckSize = (WindowAckSize) packet;
+                _rtmpSessionInfo.setAcknowledgmentWindowSize(windowAckSize.getAcknowledgementWindowSize());
+                break;
+            }
+            case SET_PEER_BANDWIDTH: {
+                HandleSetPeerBandwidth((SetPeerBandwidth) packet);
+                break;
+            }
+            case ACKNOWLEDGEMENT: {
+                _rtmpSessionInfo.setBytesAcknowledged(((Acknowledgement) packet).getSequenceNumber());
+                // the peer may have made room for more media
+                DrainSendQueue();
+                break;
+            }
+            case USER_CONTROL_MESSAGE: {
+                HandleUserControlMessage((UserControl) packet);
+                break;
+            }
+            case COMMAND_AMF0:
+            case COMMAND_AMF3: {
+                HandleCommandMessage((Command) packet);
+                break;
+            }
+            case AUDIO:
+            case VIDEO: {
+                // a publisher has no use for inbound media; give the pooled buffer back
+                ((ContentData) packet).recycle();
+                break;
+            }
+        }
+    }
+
+    private void HandleSetPeerBandwidth(SetPeerBandwidth msg) {
+        _rtmpSessionInfo.setPeerBandwidth(msg.getAcknowledgementWindowSize(), msg.getLimitType());
+        // Tell the peer how often to acknowledge, so that the limit can be honoured
+        final int windowSize = _rtmpSessionInfo.getPeerBandwidth();
+        if (windowSize != Integer.MAX_VALUE && windowSize != _rtmpSessionInfo.getWindowAckSizeSent()) {
+            _rtmpSessionInfo.setWindowAckSizeSent(windowSize);
+            ChunkStreamInfo channelInfo = _rtmpSessionInfo.getTxChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
+            enqueueControlPacket(new WindowAckSize(windowSize, channelInfo));
         }
     }
 
     private void HandleUserControlMessage(UserControl msg) {
         switch (msg.getType()) {
             case PING_REQUEST: {
-                ChunkStreamInfo channelInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
-                final UserControl pong = new UserControl(msg, channelInfo);
-                _taskWorkers.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                        try {
-                            pong.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                        } catch (Exception e) {
-                            _status = Status.FAIL;
-                            _listener.onError(ERROR.RECEIVE_RTMP_FAIL, e.toString());
-                        }
-                    }
-                });
+                ChunkStreamInfo channelInfo = _rtmpSessionInfo.getTxChunkStreamInfo(ChunkStreamInfo.CONTROL_CHANNEL);
+                UserControl pong = new UserControl(msg, channelInfo);
+                enqueueControlPacket(pong);
                 break;
             }
         }
@@ -454,35 +1346,27 @@ public class RTMPConnection implements RTMPPublisher {
             // ignore
         } else if (command.getCommandName().equalsIgnoreCase("_result")) {
             String method = _rtmpSessionInfo.takeInvokedCommand(command.getTransactionId());
-            if ("connect".contains(method)) {
-                AmfObject resultObj = (AmfObject) command.getData().get(1);
+            if (method == null) {
+                // not a reply to any of our commands
+            } else if ("connect".contains(method)) {
+                AmfObject resultObj = (AmfObject) command.getData(1);
                 String result = ((AmfString) resultObj.getProperty("code")).getValue();
                 if (result.equalsIgnoreCase("NetConnection.Connect.Success")) {
-                    PublishStream();
+                    AmfData objectEncoding = resultObj.getProperty("objectEncoding");
+                    _amf3Accepted = objectEncoding instanceof AmfNumber && ((AmfNumber) objectEncoding).getValue() == OBJECT_ENCODING_AMF3;
+                    if (!_pipelinedBringUp)
+                        PublishStream();
                 }
             } else if ("createStream".contains(method)) {
-                _streamID = (int) ((AmfNumber) command.getData().get(1)).getValue();
-                // send publish command
-                Command publishCommand = new Command("publish", ++_transactionIDCounter, _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL));
-                publishCommand.getHeader().setMessageStreamId(_currentStreamMsgID++);
-                publishCommand.getHeader().setAbsoluteTimestamp(0);
-                publishCommand.getHeader().setMessageStreamId(_streamID);
-                AmfNull amfNull = new AmfNull();
-                publishCommand.addData(amfNull);
-                AmfString argsChannelName = new AmfString(_channelName, false);
-                publishCommand.addData(argsChannelName);
-                AmfString argsLive = new AmfString("live", false);
-                publishCommand.addData(argsLive);
-
-                try {
-                    final ChunkStreamInfo chunkStreamInfo = _rtmpSessionInfo.getChunkStreamInfo(ChunkStreamInfo.RTMP_COMMAND_CHANNEL);
-                    publishCommand.writeTo(_outputStream, DEFAULT_CHUNK_SIZE, chunkStreamInfo);
-                } catch (Exception e) {
-                    _status = Status.FAIL;
-                    _listener.onError(ERROR.PUBLISH_CMD_FAIL, e.toString());
-                    return;
+                final int streamID = (int) ((AmfNumber) command.getData(1)).getValue();
+                if (!_pipelinedBringUp) {
+                    // send publish command
+                    Publish(streamID);
+                } else if (streamID != _streamID) {
+                    // publish went to a stream the server did not create: publish again on the right one
+                    _mispredictedStreamID = _streamID;
+                    Publish(streamID);
                 }
-                _rtmpSessionInfo.addInvokedCommand(publishCommand.getTransactionId(), publishCommand.getCommandName());
             } else if ("publish".contains(method)) {
                 // ignore
             } else if ("releaseStream".contains(method)) {
@@ -493,26 +1377,19 @@ public class RTMPConnection implements RTMPPublisher {
                 // ignore
             }
         } else if (command.getCommandName().equalsIgnoreCase("onStatus")) {
-            AmfObject resultObj = (AmfObject) command.getData().get(1);
+            if (_mispredictedStreamID != 0 && command.getHeader().getMessageStreamId() == _mispredictedStreamID) {
+                // status of the publish sent on the predicted stream ID
+                return;
+            }
+            AmfObject resultObj = (AmfObject) command.getData(1);
             String result = ((AmfString) resultObj.getProperty("code")).getValue();
             if (result.equalsIgnoreCase("NetStream.Publish.Start")) {
                 _status = Status.READY;
+                DrainSendQueue();
                 _listener.onInitComplete();
-                _mainLoopNumSleep = MAIN_LOOP_SLEEP_WHEN_PUBLISHING;
             } else {
-                _status = Status.FAIL;
-                _listener.onError(ERROR.RECEIVE_RTMP_FAIL, "Could not publish to rtmp server with result:" + result);
+                Fail(ERROR.RECEIVE_RTMP_FAIL, "Could not publish to rtmp server with result:" + result);
             }
         }
     }
-
-    private void handshake() throws IOException, NoSuchAlgorithmException, InvalidKeyException {
-        Handshake handshake = new Handshake();
-        handshake.writeC0(_outputStream);
-        handshake.writeC1(_outputStream); // Write C1 without waiting for S0
-        handshake.readS0(_inputStream);
-        handshake.readS1(_inputStream);
-        handshake.writeC2(_outputStream);
-        handshake.readS2(_inputStream);
-    }
 }
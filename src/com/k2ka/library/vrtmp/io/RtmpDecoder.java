@@ -1,8 +1,10 @@
 package com.k2ka.library.vrtmp.io;
 
 import com.k2ka.library.vrtmp.io.packets.Abort;
+import com.k2ka.library.vrtmp.io.packets.Acknowledgement;
 import com.k2ka.library.vrtmp.io.packets.Audio;
 import com.k2ka.library.vrtmp.io.packets.Command;
+import com.k2ka.library.vrtmp.io.packets.ContentData;
 import com.k2ka.library.vrtmp.io.packets.Data;
 import com.k2ka.library.vrtmp.io.packets.RtmpHeader;
 import com.k2ka.library.vrtmp.io.packets.RtmpPacket;
@@ -12,7 +14,7 @@ import com.k2ka.library.vrtmp.io.packets.UserControl;
 import com.k2ka.library.vrtmp.io.packets.Video;
 import com.k2ka.library.vrtmp.io.packets.WindowAckSize;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -20,39 +22,162 @@ import java.io.InputStream;
  */
 public class RtmpDecoder {
     private static final String TAG = "RtmpDecoder";
+    private static final int RX_BUFFERS_PER_SIZE_CLASS = 4;
     private RtmpSessionInfo rtmpSessionInfo;
+    /** Message reassembly buffers; a publisher receives little, so only a few are kept per size class */
+    private final FrameBufferPool rxBufferPool = new FrameBufferPool(false, RX_BUFFERS_PER_SIZE_CLASS);
+    /** Collects a chunk header that arrives split over several reads */
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RtmpHeader.MAX_RX_HEADER_SIZE);
+    /** Header of the chunk whose body is being read, or <code>null</code> while waiting for a chunk header */
+    private RtmpHeader chunkHeader;
+    /** Bytes of the current chunk's body that have not been received yet */
+    private int chunkBodyRemaining;
 
     public RtmpDecoder(RtmpSessionInfo rtmpSessionInfo) {
         this.rtmpSessionInfo = rtmpSessionInfo;
     }
 
-    public RtmpPacket readPacket(InputStream in) throws IOException {
+    /**
+     * Consumes all bytes remaining in the specified buffer, however the chunk
+     * stream happens to be split: a chunk header or body that is only partly
+     * received is kept (headers in a small scratch buffer, bodies in the
+     * message's reassembly buffer) and completed by the next call. Completed
+     * messages are passed to the handler, which is also told whenever the
+     * window acknowledgement size has been reached.
+     *
+     * Chunk headers are parsed into the chunk stream's reused header, so apart
+     * from the packet (and its own copy of the header) of a completed message
+     * nothing is allocated per chunk. Audio and video bodies, and all messages
+     * that are not received in one piece, are copied once into a pooled buffer
+     * sized for the whole message; audio and video packets expose it as their
+     * payload and hold it until recycled. Other messages are decoded from the
+     * input buffer, or the reassembly buffer, directly: Command and Data
+     * packets keep referencing it, so their bodies are only valid until the
+     * handler returns.
+     */
+    public void decode(ByteBuffer in, PacketRxHandler handler) throws IOException {
+        final int start = in.position();
+        while (chunkHeader != null || readChunkHeader(in)) {
+            final RtmpHeader header = chunkHeader;
+            final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getRxChunkStreamInfo(header.getChunkStreamId());
+            final RtmpHeader.MessageType messageType = header.getMessageType();
+            final boolean content = messageType == RtmpHeader.MessageType.AUDIO || messageType == RtmpHeader.MessageType.VIDEO;
+            RtmpPacket packet = null;
+            if (!content && chunkBodyRemaining == header.getPacketLength() && in.remaining() >= chunkBodyRemaining) {
+                // The whole message is in the buffer
+                final int limit = in.limit();
+                final int end = in.position() + chunkBodyRemaining;
+                in.limit(end);
+                try {
+                    packet = readBody(packetHeader(header), in);
+                } finally {
+                    in.limit(limit);
+                    in.position(end);
+                }
+                chunkBodyRemaining = 0;
+            } else {
+                final int count = Math.min(chunkBodyRemaining, in.remaining());
+                final boolean complete = chunkStreamInfo.storePacketBytes(in, count, rxBufferPool);
+                chunkBodyRemaining -= count;
+                if (chunkBodyRemaining > 0) {
+                    break; // the rest of the chunk has not been received yet
+                }
+                if (complete) {
+                    chunkHeader = null;
+                    final FrameBuffer message = chunkStreamInfo.takeStoredPacket();
+                    try {
+                        packet = readStoredPacket(header, message);
+                        if (packet != null) {
+                            handler.handleRxPacket(packet);
+                        }
+                    } finally {
+                        // Packets that outlive the handler hold a reference of their own
+                        message.release();
+                    }
+                    continue;
+                }
+            }
+            chunkHeader = null;
+            if (packet != null) {
+                handler.handleRxPacket(packet);
+            }
+        }
+        try {
+            rtmpSessionInfo.addToWindowBytesRead(in.position() - start, null);
+        } catch (WindowAckRequired e) {
+            handler.notifyWindowAckRequired(e.getBytesRead());
+        }
+    }
 
-        RtmpHeader header = RtmpHeader.readHeader(in, rtmpSessionInfo);
-        RtmpPacket rtmpPacket;
+    /**
+     * Collects the next chunk header from the buffer and parses it once
+     * complete, setting up the chunk body to be read
+     *
+     * @return <code>false</code> if the buffer ran out before the header was complete
+     */
+    private boolean readChunkHeader(ByteBuffer in) throws IOException {
+        int headerSize;
+        while ((headerSize = RtmpHeader.getHeaderSize(headerBuffer, 0, headerBuffer.position(), rtmpSessionInfo)) > headerBuffer.position()) {
+            if (!in.hasRemaining()) {
+                return false;
+            }
+            final int count = Math.min(headerSize - headerBuffer.position(), in.remaining());
+            final int limit = in.limit();
+            in.limit(in.position() + count);
+            headerBuffer.put(in);
+            in.limit(limit);
+        }
+        headerBuffer.flip();
+        chunkHeader = RtmpHeader.readHeader(headerBuffer, rtmpSessionInfo);
+        headerBuffer.clear();
+        final int storedLength = rtmpSessionInfo.getRxChunkStreamInfo(chunkHeader.getChunkStreamId()).getStoredPacketLength();
+        chunkBodyRemaining = Math.min(rtmpSessionInfo.getRxChunkSize(), chunkHeader.getPacketLength() - storedLength);
+        return true;
+    }
 
-        ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getChunkStreamInfo(header.getChunkStreamId());
+    /**
+     * Decodes a completely received message from its reassembly buffer, which
+     * the caller releases once the handler is done with the packet: Audio and
+     * Video packets keep a reference to it of their own, which the handler
+     * has to give back by recycling them
+     */
+    private RtmpPacket readStoredPacket(RtmpHeader header, FrameBuffer message) throws IOException {
+        final RtmpHeader.MessageType messageType = header.getMessageType();
+        if (messageType == RtmpHeader.MessageType.AUDIO || messageType == RtmpHeader.MessageType.VIDEO) {
+            ContentData contentData = messageType == RtmpHeader.MessageType.AUDIO ? new Audio(packetHeader(header)) : new Video(packetHeader(header));
+            contentData.setData(message);
+            return contentData;
+        }
+        return readBody(packetHeader(header), message.getPayload().duplicate());
+    }
 
-        chunkStreamInfo.setPrevHeaderRx(header);
+    /** @return a copy of the chunk stream's header for a completed message, which the packet may keep (and recycle) */
+    private static RtmpHeader packetHeader(RtmpHeader header) {
+        RtmpHeader packetHeader = new RtmpHeader();
+        packetHeader.copyFrom(header);
+        return packetHeader;
+    }
 
-        if (header.getPacketLength() > rtmpSessionInfo.getChunkSize()) {
-            // This packet consists of more than one chunk; store the chunks in the chunk stream until everything is read
-            if (!chunkStreamInfo.storePacketChunk(in, rtmpSessionInfo.getChunkSize())) {
-                return null; // packet is not yet complete
-            } else {
-                in = chunkStreamInfo.getStoredPacketInputStream();
-            }
-        }
+    /** Decodes a message body that extends from the buffer's position to its limit */
+    private RtmpPacket readBody(RtmpHeader header, ByteBuffer in) throws IOException {
+        RtmpPacket rtmpPacket;
         switch (header.getMessageType()) {
 
             case SET_CHUNK_SIZE: {
                 SetChunkSize setChunkSize = new SetChunkSize(header);
                 setChunkSize.readBody(in);
-                rtmpSessionInfo.setChunkSize(setChunkSize.getChunkSize());                
+                rtmpSessionInfo.setRxChunkSize(setChunkSize.getChunkSize());                
                 return null;
             }
-            case ABORT:
-                rtmpPacket = new Abort(header);
+            case ABORT: {
+                Abort abort = new Abort(header);
+                abort.readBody(in);
+                // Releases the reassembly buffer of the aborted message
+                rtmpSessionInfo.getRxChunkStreamInfo(abort.getChunkStreamId()).clearStoredChunks();
+                return abort;
+            }
+            case ACKNOWLEDGEMENT:
+                rtmpPacket = new Acknowledgement(header);
                 break;
             case USER_CONTROL_MESSAGE:
                 rtmpPacket = new UserControl(header);
@@ -63,19 +188,19 @@ public class RtmpDecoder {
             case SET_PEER_BANDWIDTH:
                 rtmpPacket = new SetPeerBandwidth(header);
                 break;
-            case AUDIO:
-                rtmpPacket = new Audio();
-                break;
-            case VIDEO:
-                rtmpPacket = new Video();
             case COMMAND_AMF0:
+            case COMMAND_AMF3:
                 rtmpPacket = new Command(header);
                 break;
             case DATA_AMF0:
+            case DATA_AMF3:
                 rtmpPacket = new Data(header);
                 break;
-            default:
-                throw new IOException("No packet body implementation for message type: " + header.getMessageType());
+            default: {
+                // No packet body implementation for this message type; a publisher has no use for it
+                in.position(in.limit());
+                return null;
+            }
         }                
         rtmpPacket.readBody(in);                        
         return rtmpPacket;
@@ -0,0 +1,191 @@
+package com.k2ka.library.vrtmp.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single-threaded, Selector-based event loop shared by many connections
+ *
+ * All channel callbacks, tasks and timers of a loop run on its own thread, so
+ * connection state that is only touched from these needs no locking. Other
+ * threads hand work over with {@link #execute(Runnable)}.
+ *
+ * @author k2ka
+ */
+public class RtmpEventLoop implements Runnable {
+    private final static String TAG = "RtmpEventLoop";
+
+    /** Receives the readiness events of a registered channel, on the loop thread */
+    interface ChannelHandler {
+        void onChannelReady(SelectionKey key);
+
+        /**
+         * Called when {@link #onChannelReady(SelectionKey)} threw; the key is
+         * already cancelled, and the handler should give up the channel and
+         * report the failure
+         */
+        void onChannelError(SelectionKey key, RuntimeException e);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /** Timers; loop thread only */
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<ScheduledTask>();
+    private long scheduledTaskCounter;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean shutdown;
+
+    RtmpEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** @return <code>true</code> if the calling thread is this loop's thread */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Runs the specified task on the loop thread, after the tasks already submitted */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /** Runs the specified task on the loop thread once the delay has elapsed */
+    public void schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (!inEventLoop()) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    schedule(task, delay, unit);
+                }
+            });
+            return;
+        }
+        scheduledTasks.add(new ScheduledTask(task, System.nanoTime() + unit.toNanos(delay), scheduledTaskCounter++));
+    }
+
+    /** Registers a channel with this loop's selector; must be called on the loop thread */
+    SelectionKey register(SelectableChannel channel, int interestOps, ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, interestOps, handler);
+    }
+
+    /** Stops the loop and closes all channels still registered with it */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!shutdown) {
+            final long timeoutMs = runScheduledTasks();
+            try {
+                // Reset before checking for tasks, so a task submitted from now on wakes the selector again
+                wakeupPending.set(false);
+                if (tasks.isEmpty()) {
+                    selector.select(timeoutMs);
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    final ChannelHandler handler = (ChannelHandler) key.attachment();
+                    try {
+                        handler.onChannelReady(key);
+                    } catch (RuntimeException e) {
+                        // One broken connection must not take the others on this loop down
+                        e.printStackTrace();
+                        key.cancel();
+                        try {
+                            handler.onChannelError(key, e);
+                        } catch (RuntimeException e2) {
+                            e2.printStackTrace();
+                        }
+                    }
+                }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                runSafely(task);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+    /** Runs the timers that are due; @return how long the selector may block, in milliseconds (0 = no timer) */
+    private long runScheduledTasks() {
+        ScheduledTask scheduledTask;
+        while ((scheduledTask = scheduledTasks.peek()) != null) {
+            final long waitNs = scheduledTask.deadlineNs - System.nanoTime();
+            if (waitNs > 0) {
+                // Round up so that the selector does not wake up just before the deadline
+                return (waitNs + 999999) / 1000000;
+            }
+            scheduledTasks.poll();
+            runSafely(scheduledTask.task);
+        }
+        return 0;
+    }
+
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        final Runnable task;
+        final long deadlineNs;
+        /** Keeps tasks with the same deadline in submission order */
+        final long sequence;
+
+        ScheduledTask(Runnable task, long deadlineNs, long sequence) {
+            this.task = task;
+            this.deadlineNs = deadlineNs;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            final long diff = deadlineNs - other.deadlineNs;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.k2ka.library.vrtmp.io;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops that connections are spread over
+ *
+ * Each connection is bound to one loop for its whole life; loops are handed
+ * out round-robin. By default there is one loop per available processor.
+ *
+ * @author k2ka
+ */
+public class RtmpEventLoopGroup {
+
+    private static RtmpEventLoopGroup defaultGroup;
+
+    private final RtmpEventLoop[] eventLoops;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public RtmpEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public RtmpEventLoopGroup(int threadCount) throws IOException {
+        eventLoops = new RtmpEventLoop[Math.max(1, threadCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new RtmpEventLoop("RtmpEventLoop-" + i);
+        }
+    }
+
+    /** @return the group used by connections that were not given one, created on first use */
+    public static synchronized RtmpEventLoopGroup getDefault() throws IOException {
+        if (defaultGroup == null) {
+            defaultGroup = new RtmpEventLoopGroup();
+        }
+        return defaultGroup;
+    }
+
+    /** @return the loop the next connection should be bound to */
+    public RtmpEventLoop next() {
+        return eventLoops[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    public int getEventLoopCount() {
+        return eventLoops.length;
+    }
+
+    /** Stops all loops; connections still bound to them are closed */
+    public void shutdown() {
+        for (RtmpEventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.k2ka.library.vrtmp.io;
 
 import com.k2ka.library.vrtmp.io.packets.RtmpPacket;
+import com.k2ka.library.vrtmp.io.packets.Handshake;
+import com.k2ka.library.vrtmp.io.packets.SetPeerBandwidth;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -18,10 +20,36 @@ public class RtmpSessionInfo {
     /** Used internally to store the total number of bytes read (used when sending Acknowledgement messages) */
     private int totalBytesRead = 0;
     
-    /** Default chunk size is 128 bytes */
-    private int chunkSize = 128;
-    private Map<Integer, ChunkStreamInfo> chunkChannels = new HashMap<Integer, ChunkStreamInfo>();
-    private Map<Integer, String> invokedMethods = new ConcurrentHashMap<Integer, String>();
+    /** Outbound limit set by the peer with Set Peer Bandwidth: the most bytes we may have sent but not had acknowledged */
+    private int peerBandwidth = Integer.MAX_VALUE;
+    private SetPeerBandwidth.LimitType peerBandwidthLimitType;
+    /** The window acknowledgement size last sent to the peer, or 0 if none was sent yet */
+    private int windowAckSizeSent;
+    /** The sequence number of the last Acknowledgement received from the peer, i.e. the number of bytes it received */
+    private int bytesAcknowledged;
+    private boolean acknowledgementReceived;
+
+    /** Default chunk size is 128 bytes, in both directions until a Set Chunk Size message changes it */
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    /** Larger chunk sizes are equivalent, since no message (and so no chunk) is larger than this */
+    public static final int MAX_CHUNK_SIZE = 0xFFFFFF;
+    /** The chunk size the peer sends with */
+    private int rxChunkSize = DEFAULT_CHUNK_SIZE;
+    /** The chunk size we send with; changes once our Set Chunk Size message has been written */
+    private int txChunkSize = DEFAULT_CHUNK_SIZE;
+    /** Chunk stream IDs 2-63 fit the 1-byte basic header, so tables of this size rarely grow */
+    private static final int CHUNK_STREAM_TABLE_SIZE = 64;
+    /** Largest chunk stream ID a 3-byte basic header can carry */
+    private static final int MAX_CHUNK_STREAM_ID = 65599;
+    /**
+     * Chunk stream state by chunk stream ID, kept apart per direction: the
+     * decoder only touches the inbound entries and the send path only the
+     * outbound ones
+     */
+    private ChunkStreamInfo[] rxChunkStreams = new ChunkStreamInfo[CHUNK_STREAM_TABLE_SIZE];
+    private ChunkStreamInfo[] txChunkStreams = new ChunkStreamInfo[CHUNK_STREAM_TABLE_SIZE];
+    /** Names of the commands awaiting a result, by transaction ID; only used on the connection's event loop */
+    private Map<Integer, String> invokedMethods = new HashMap<Integer, String>();
 
     private long markAbsoluteTimestamp = 0;
 
@@ -33,15 +61,48 @@ public class RtmpSessionInfo {
         this.markAbsoluteTimestamp = markAbsoluteTimestamp;
     }
 
-    public ChunkStreamInfo getChunkStreamInfo(int chunkStreamId) {
-        ChunkStreamInfo chunkStreamInfo = chunkChannels.get(chunkStreamId);
+    /** @return the state of the specified chunk stream for the chunks received on it */
+    public ChunkStreamInfo getRxChunkStreamInfo(int chunkStreamId) {
+        if (chunkStreamId >= rxChunkStreams.length) {
+            rxChunkStreams = growChunkStreamTable(rxChunkStreams, chunkStreamId);
+        }
+        ChunkStreamInfo chunkStreamInfo = rxChunkStreams[chunkStreamId];
+        if (chunkStreamInfo == null) {
+            chunkStreamInfo = new ChunkStreamInfo();
+            rxChunkStreams[chunkStreamId] = chunkStreamInfo;
+        }
+        return chunkStreamInfo;
+    }
+
+    /** Releases the buffers of the messages that were being received, when the connection ends */
+    public void clearRxStoredChunks() {
+        for (ChunkStreamInfo chunkStreamInfo : rxChunkStreams) {
+            if (chunkStreamInfo != null) {
+                chunkStreamInfo.clearStoredChunks();
+            }
+        }
+    }
+
+    /** @return the state of the specified chunk stream for the chunks sent on it */
+    public ChunkStreamInfo getTxChunkStreamInfo(int chunkStreamId) {
+        if (chunkStreamId >= txChunkStreams.length) {
+            txChunkStreams = growChunkStreamTable(txChunkStreams, chunkStreamId);
+        }
+        ChunkStreamInfo chunkStreamInfo = txChunkStreams[chunkStreamId];
         if (chunkStreamInfo == null) {
             chunkStreamInfo = new ChunkStreamInfo();
-            chunkChannels.put(chunkStreamId, chunkStreamInfo);
+            txChunkStreams[chunkStreamId] = chunkStreamInfo;
         }
         return chunkStreamInfo;
     }
 
+    private static ChunkStreamInfo[] growChunkStreamTable(ChunkStreamInfo[] table, int chunkStreamId) {
+        if (chunkStreamId > MAX_CHUNK_STREAM_ID) {
+            throw new IllegalArgumentException("Invalid chunk stream ID: " + chunkStreamId);
+        }
+        return Arrays.copyOf(table, Math.min(Math.max(table.length * 2, chunkStreamId + 1), MAX_CHUNK_STREAM_ID + 1));
+    }
+
     public String takeInvokedCommand(int transactionId) {
         return invokedMethods.remove(transactionId);
     }
@@ -50,12 +111,20 @@ public class RtmpSessionInfo {
         return invokedMethods.put(transactionId, commandName);
     }
 
-    public int getChunkSize() {
-        return chunkSize;
+    public int getRxChunkSize() {
+        return rxChunkSize;
+    }
+
+    public void setRxChunkSize(int rxChunkSize) {
+        this.rxChunkSize = rxChunkSize;
+    }
+
+    public int getTxChunkSize() {
+        return txChunkSize;
     }
 
-    public void setChunkSize(int chunkSize) {
-        this.chunkSize = chunkSize;
+    public void setTxChunkSize(int txChunkSize) {
+        this.txChunkSize = txChunkSize;
     }
 
     public int getAcknowledgementWindowSize() {
@@ -66,6 +135,68 @@ public class RtmpSessionInfo {
         this.acknowledgementWindowSize = acknowledgementWindowSize;
     }
 
+    /**
+     * Applies a Set Peer Bandwidth request: a hard limit replaces the current
+     * one, a soft limit can only lower it and a dynamic limit counts as hard if
+     * the previous limit was hard (and is ignored otherwise)
+     */
+    public void setPeerBandwidth(int windowSize, SetPeerBandwidth.LimitType limitType) {
+        if (limitType == SetPeerBandwidth.LimitType.DYNAMIC) {
+            if (peerBandwidthLimitType != SetPeerBandwidth.LimitType.HARD) {
+                return;
+            }
+            limitType = SetPeerBandwidth.LimitType.HARD;
+        }
+        if (limitType == SetPeerBandwidth.LimitType.SOFT) {
+            peerBandwidth = Math.min(peerBandwidth, windowSize);
+        } else if (limitType == SetPeerBandwidth.LimitType.HARD) {
+            peerBandwidth = windowSize;
+        } else {
+            return;
+        }
+        peerBandwidthLimitType = limitType;
+    }
+
+    public int getPeerBandwidth() {
+        return peerBandwidth;
+    }
+
+    public int getWindowAckSizeSent() {
+        return windowAckSizeSent;
+    }
+
+    public void setWindowAckSizeSent(int windowAckSizeSent) {
+        this.windowAckSizeSent = windowAckSizeSent;
+    }
+
+    /** Records an Acknowledgement received from the peer */
+    public void setBytesAcknowledged(int sequenceNumber) {
+        bytesAcknowledged = sequenceNumber;
+        acknowledgementReceived = true;
+    }
+
+    /**
+     * The peer's acknowledgement sequence number is compared against all the
+     * bytes sent on the connection, handshake (C0, C1 and C2) included, as
+     * most servers count them. The difference is taken as a signed 32-bit
+     * value, since sequence numbers wrap around, and an acknowledgement ahead
+     * of our count leaves nothing unacknowledged. Peers that count from the
+     * end of the handshake acknowledge every window of their own count, so
+     * the handshake bytes are allowed on top of the window: stopping short of
+     * what such a peer waits for would stall the connection for good.
+     *
+     * @param totalBytesSent the number of bytes sent to the peer so far, handshake included
+     * @return <code>true</code> if no more (media) data may be sent until the peer acknowledges some.
+     * Peers that never acknowledge are not limited, as they would stall the connection.
+     */
+    public boolean isPeerBandwidthExceeded(long totalBytesSent) {
+        if (!acknowledgementReceived || peerBandwidth == Integer.MAX_VALUE) {
+            return false;
+        }
+        final int unacknowledged = Math.max(0, (int) (totalBytesSent - bytesAcknowledged));
+        return unacknowledged >= (peerBandwidth & 0xFFFFFFFFL) + Handshake.CLIENT_HANDSHAKE_BYTES;
+    }
+
     /**
      * Add the specified amount of bytes to the total number of bytes read for this RTMP window;     
      * @param numBytes the number of bytes to add
@@ -0,0 +1,112 @@
+package com.k2ka.library.vrtmp.io;
+
+import com.k2ka.library.vrtmp.io.packets.RtmpPacket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer of outbound packets
+ *
+ * Producers claim slots with a CAS on the tail sequence and never block each
+ * other; packets are handed to the consumer strictly in claim order. Each
+ * slot carries the packet, its (raw) timestamp, its size in bytes and the
+ * time it was queued, so the queue depth can be reported in both frames and
+ * bytes and stale packets can be recognized.
+ *
+ * @author k2ka
+ */
+public class SendQueue {
+
+    private final int mask;
+    private final RtmpPacket[] packets;
+    private final long[] timestamps;
+    private final int[] sizes;
+    private final long[] enqueueTimes;
+    /** Per-slot sequence: equals the position when free, position + 1 when published */
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /** Next position to consume; only written by the consumer */
+    private volatile long head;
+
+    /** @param capacity the maximum number of queued packets; rounded up to a power of two */
+    public SendQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        packets = new RtmpPacket[size];
+        timestamps = new long[size];
+        sizes = new int[size];
+        enqueueTimes = new long[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /** @return <code>false</code> if the queue is full */
+    public boolean offer(RtmpPacket packet, long timestamp, int size) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            final long diff = sequences.get((int) (pos & mask)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            // Another producer claimed this slot first; retry with the new tail
+        }
+        final int index = (int) (pos & mask);
+        packets[index] = packet;
+        timestamps[index] = timestamp;
+        sizes[index] = size;
+        enqueueTimes[index] = System.nanoTime();
+        queuedBytes.addAndGet(size);
+        sequences.set(index, pos + 1);
+        return true;
+    }
+
+    /** Consumer only: @return the oldest queued packet without removing it, or <code>null</code> if the queue is empty */
+    public RtmpPacket peek() {
+        final long pos = head;
+        final int index = (int) (pos & mask);
+        return sequences.get(index) == pos + 1 ? packets[index] : null;
+    }
+
+    /** Consumer only: @return the timestamp the packet returned by {@link #peek()} was queued with */
+    public long peekTimestamp() {
+        return timestamps[(int) (head & mask)];
+    }
+
+    /** Consumer only: @return when the packet returned by {@link #peek()} was queued (System.nanoTime()) */
+    public long peekEnqueueTime() {
+        return enqueueTimes[(int) (head & mask)];
+    }
+
+    /** Consumer only: removes the packet returned by {@link #peek()} */
+    public void remove() {
+        final long pos = head;
+        final int index = (int) (pos & mask);
+        packets[index] = null;
+        queuedBytes.addAndGet(-sizes[index]);
+        sequences.set(index, pos + mask + 1);
+        head = pos + 1;
+    }
+
+    /** @return the number of queued packets */
+    public int getQueuedFrames() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    /** @return the total size of the queued packets, in bytes */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+}
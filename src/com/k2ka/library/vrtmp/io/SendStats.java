@@ -0,0 +1,105 @@
+package com.k2ka.library.vrtmp.io;
+
+/**
+ * Snapshot of a connection's send path, taken at the end of a stats interval
+ *
+ * Rates and latencies cover the last interval only; totals cover the whole
+ * connection. The bandwidth estimate follows the throughput measured while
+ * the connection was backlogged (socket full, peer bandwidth exhausted or
+ * frames dropped), which is when throughput reflects the available
+ * bandwidth; otherwise it is only raised when more is observed.
+ *
+ * @author k2ka
+ */
+public final class SendStats {
+
+    private final long intervalMs;
+    private final int queuedFrames;
+    private final long queuedBytes;
+    private final long bytesSent;
+    private final long throughput;
+    private final long estimatedBandwidth;
+    private final long averageLatencyMs;
+    private final long maxLatencyMs;
+    private final long framesSent;
+    private final long droppedFrames;
+    private final boolean congested;
+
+    SendStats(long intervalMs, int queuedFrames, long queuedBytes, long bytesSent, long throughput, long estimatedBandwidth,
+              long averageLatencyMs, long maxLatencyMs, long framesSent, long droppedFrames, boolean congested) {
+        this.intervalMs = intervalMs;
+        this.queuedFrames = queuedFrames;
+        this.queuedBytes = queuedBytes;
+        this.bytesSent = bytesSent;
+        this.throughput = throughput;
+        this.estimatedBandwidth = estimatedBandwidth;
+        this.averageLatencyMs = averageLatencyMs;
+        this.maxLatencyMs = maxLatencyMs;
+        this.framesSent = framesSent;
+        this.droppedFrames = droppedFrames;
+        this.congested = congested;
+    }
+
+    /** @return the length of the interval these stats cover, in milliseconds */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /** @return the number of messages waiting in the send queue */
+    public int getQueuedFrames() {
+        return queuedFrames;
+    }
+
+    /** @return the number of media bytes waiting in the send queue */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /** @return the number of bytes written to the socket since the connection was set up */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /** @return the socket write throughput during the interval, in bytes per second */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /** @return the estimated available bandwidth, in bytes per second (0 until something was sent) */
+    public long getEstimatedBandwidth() {
+        return estimatedBandwidth;
+    }
+
+    /** @return the average time from SendData to socket write for the frames written during the interval, in milliseconds */
+    public long getAverageLatencyMs() {
+        return averageLatencyMs;
+    }
+
+    /** @return the longest time from SendData to socket write during the interval, in milliseconds */
+    public long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    /** @return the number of media frames written during the interval */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /** @return the number of frames dropped during the interval (see {@link DropPolicy}) */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /** @return <code>true</code> if the send path was backlogged at some point during the interval */
+    public boolean isCongested() {
+        return congested;
+    }
+
+    @Override
+    public String toString() {
+        return "SendStats (queued: " + queuedFrames + " frames / " + queuedBytes + " bytes, throughput: " + throughput
+                + " B/s, bandwidth: " + estimatedBandwidth + " B/s, latency: " + averageLatencyMs + " ms avg / "
+                + maxLatencyMs + " ms max, sent: " + framesSent + ", dropped: " + droppedFrames
+                + (congested ? ", congested)" : ")");
+    }
+}
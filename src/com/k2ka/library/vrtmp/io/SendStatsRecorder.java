@@ -0,0 +1,79 @@
+package com.k2ka.library.vrtmp.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates send path measurements between two {@link SendStats} snapshots
+ *
+ * Everything except {@link #onFrameDropped()} is called on the connection's
+ * event loop only.
+ *
+ * @author k2ka
+ */
+final class SendStatsRecorder {
+
+    /** Weight of the newest sample in the bandwidth estimate */
+    private static final double BANDWIDTH_SMOOTHING = 0.3;
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private long intervalStartNs = System.nanoTime();
+    private long intervalStartBytes;
+    private long latencySumNs;
+    private long latencyMaxNs;
+    private long framesSent;
+    private boolean congested;
+    private long estimatedBandwidth;
+
+    /** Starts over for a new connection; the byte count restarts at 0 */
+    void reset(long nowNs) {
+        droppedFrames.set(0);
+        intervalStartNs = nowNs;
+        intervalStartBytes = 0;
+        latencySumNs = 0;
+        latencyMaxNs = 0;
+        framesSent = 0;
+        congested = false;
+        estimatedBandwidth = 0;
+    }
+
+    /** Records a media frame that was written, given when it was queued (System.nanoTime()) */
+    void onFrameWritten(long enqueueTimeNs, long nowNs) {
+        final long latencyNs = nowNs - enqueueTimeNs;
+        latencySumNs += latencyNs;
+        latencyMaxNs = Math.max(latencyMaxNs, latencyNs);
+        framesSent++;
+    }
+
+    /** May be called from any thread */
+    void onFrameDropped() {
+        droppedFrames.incrementAndGet();
+    }
+
+    /** Records that the send path could not keep up (socket full or peer bandwidth exhausted) */
+    void onCongested() {
+        congested = true;
+    }
+
+    /** Ends the current interval and starts the next one */
+    SendStats takeSnapshot(long nowNs, long bytesSent, int queuedFrames, long queuedBytes) {
+        final long intervalNs = Math.max(1, nowNs - intervalStartNs);
+        final long throughput = (bytesSent - intervalStartBytes) * 1000000000L / intervalNs;
+        final long dropped = droppedFrames.getAndSet(0);
+        congested |= dropped > 0;
+        if (congested && estimatedBandwidth > 0) {
+            estimatedBandwidth = (long) (estimatedBandwidth * (1 - BANDWIDTH_SMOOTHING) + throughput * BANDWIDTH_SMOOTHING);
+        } else {
+            estimatedBandwidth = Math.max(estimatedBandwidth, throughput);
+        }
+        SendStats stats = new SendStats(intervalNs / 1000000L, queuedFrames, queuedBytes, bytesSent, throughput, estimatedBandwidth,
+                framesSent > 0 ? latencySumNs / framesSent / 1000000L : 0, latencyMaxNs / 1000000L,
+                framesSent, dropped, congested);
+        intervalStartNs = nowNs;
+        intervalStartBytes = bytesSent;
+        latencySumNs = 0;
+        latencyMaxNs = 0;
+        framesSent = 0;
+        congested = false;
+        return stats;
+    }
+}
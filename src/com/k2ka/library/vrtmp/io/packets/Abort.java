@@ -1,11 +1,13 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A "Abort" RTMP control message, received on chunk stream ID 2 (control channel)
@@ -41,6 +43,11 @@ public class Abort extends RtmpPacket {
         chunkStreamId = Util.readUnsignedInt32(in);
     }
 
+    @Override
+    public void readBody(ByteBuffer in) {
+        chunkStreamId = BufferCodec.readUnsignedInt32(in);
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {
         Util.writeUnsignedInt32(out, chunkStreamId);
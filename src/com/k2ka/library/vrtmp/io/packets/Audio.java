@@ -10,6 +10,10 @@ import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 public class Audio extends ContentData {
 
     public Audio() {
-        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_STREAM_CHANNEL, RtmpHeader.MessageType.AUDIO));
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_AUDIO_CHANNEL, RtmpHeader.MessageType.AUDIO));
+    }
+
+    public Audio(RtmpHeader header) {
+        super(header);
     }
 }
@@ -7,6 +7,7 @@ import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsulates an command/"invoke" RTMP packet
@@ -22,6 +23,8 @@ public class Command extends VariableBodyRtmpPacket {
 
     private String commandName;
     private int transactionId;    
+    /** Template providing the encoded body, or <code>null</code> if the body is encoded from the data */
+    private CommandTemplate template;
 
     public Command(RtmpHeader header) {
         super(header);
@@ -39,6 +42,11 @@ public class Command extends VariableBodyRtmpPacket {
         this.transactionId = transactionId;
     }
 
+    Command(CommandTemplate template, int transactionId) {
+        this(template.getCommandName(), transactionId);
+        this.template = template;
+    }
+
     public String getCommandName() {
         return commandName;
     }
@@ -58,12 +66,23 @@ public class Command extends VariableBodyRtmpPacket {
     @Override
     public void readBody(InputStream in) throws IOException {
         // The command name and transaction ID are always present (AMF string followed by number)
+        int bytesRead = skipFormatSelector(in);
         commandName = AmfString.readStringFrom(in, false);
         transactionId = (int) AmfNumber.readNumberFrom(in);
-        int bytesRead = AmfString.sizeOf(commandName, false) + AmfNumber.SIZE;
+        bytesRead += AmfString.sizeOf(commandName, false) + AmfNumber.SIZE;
         readVariableData(in, bytesRead);
     }
 
+    @Override
+    public void readBody(ByteBuffer in) throws IOException {
+        // The command name and transaction ID are always present (AMF string followed by number)
+        ByteBuffer body = keepBody(in);
+        commandName = AmfString.readStringFrom(body, false);
+        transactionId = (int) AmfNumber.readNumberFrom(body);
+        // The arguments are only decoded when they are accessed
+        readVariableDataLazily(body);
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {
         AmfString.writeStringTo(out, commandName, false);
@@ -72,6 +91,26 @@ public class Command extends VariableBodyRtmpPacket {
         writeVariableData(out);
     }
     
+    @Override
+    protected ByteBuffer[] getBodyBuffers() throws IOException {
+        if (template != null) {
+            return new ByteBuffer[]{template.encodeBody(transactionId)};
+        }
+        return super.getBodyBuffers();
+    }
+
+    @Override
+    protected int getBodySize() {
+        return AmfString.sizeOf(commandName, false) + AmfNumber.SIZE + getVariableDataSize();
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        AmfString.writeStringTo(out, commandName, false);
+        AmfNumber.writeNumberTo(out, transactionId);
+        writeVariableData(out);
+    }
+
     @Override
     public String toString() {
         return "RTMP Command (command: " + commandName + ", transaction ID: " + transactionId + ")";
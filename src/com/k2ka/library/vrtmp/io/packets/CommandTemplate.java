@@ -0,0 +1,63 @@
+package com.k2ka.library.vrtmp.io.packets;
+
+import com.k2ka.library.vrtmp.amf.AmfData;
+import com.k2ka.library.vrtmp.amf.AmfNull;
+import com.k2ka.library.vrtmp.amf.AmfNumber;
+import com.k2ka.library.vrtmp.amf.AmfString;
+import com.k2ka.library.vrtmp.utils.BufferCodec;
+import java.nio.ByteBuffer;
+
+/**
+ * Command body that is encoded once, for commands that are sent with the
+ * same arguments every time. Commands made from the template get a copy of
+ * the encoded body with their transaction ID patched in; they do not carry
+ * the arguments as AMF data.
+ *
+ * @author k2ka
+ */
+public final class CommandTemplate {
+
+    private final String commandName;
+    private final byte[] body;
+    /** Offset of the transaction ID's value, right after its AMF type byte */
+    private final int transactionIdOffset;
+
+    public CommandTemplate(String commandName, AmfData... arguments) {
+        this.commandName = commandName;
+        final int transactionIdSize = AmfString.sizeOf(commandName, false) + AmfNumber.SIZE;
+        int size = transactionIdSize;
+        for (AmfData argument : arguments) {
+            size += argument.getSize();
+        }
+        if (arguments.length == 0) {
+            size += 1; // a null, as written for commands without data
+        }
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        AmfString.writeStringTo(out, commandName, false);
+        AmfNumber.writeNumberTo(out, 0);
+        for (AmfData argument : arguments) {
+            argument.writeTo(out);
+        }
+        if (arguments.length == 0) {
+            AmfNull.writeNullTo(out);
+        }
+        body = out.array();
+        transactionIdOffset = transactionIdSize - (AmfNumber.SIZE - 1);
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /** @return a new command with the body of this template */
+    public Command newCommand(int transactionId) {
+        return new Command(this, transactionId);
+    }
+
+    /** @return a copy of the encoded body with the specified transaction ID */
+    ByteBuffer encodeBody(int transactionId) {
+        final byte[] copy = body.clone();
+        BufferCodec.writeDouble(copy, transactionIdOffset, transactionId);
+        return ByteBuffer.wrap(copy);
+    }
+}
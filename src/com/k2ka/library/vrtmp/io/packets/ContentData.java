@@ -1,38 +1,160 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.io.FrameBuffer;
 import com.k2ka.library.vrtmp.utils.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Content (audio/video) data packet base
- *  
+ *
+ * The body consists of an optional FLV tag header (e.g. the AAC/AVC packet
+ * type bytes) followed by the payload. Both are referenced, not copied, so the
+ * payload can be a slice of the caller's array, a direct buffer or a pooled
+ * {@link FrameBuffer}. Packets can be recycled once written.
+ *
  * @author k2ka
  */
 public abstract class ContentData extends RtmpPacket {
 
     protected byte[] data;
     protected int length;
+    private ByteBuffer tagHeader;
+    private ByteBuffer payload;
+    private FrameBuffer frame;
+    private final ByteBuffer[] payloadOnly = new ByteBuffer[1];
+    private final ByteBuffer[] tagHeaderAndPayload = new ByteBuffer[2];
 
     public ContentData(RtmpHeader header) {
         super(header);
     }
 
+    /** @return the backing array of the payload, or <code>null</code> if the payload is a direct buffer */
     public byte[] getData() {
         return data;
     }
 
+    /** @return a read-only view of the payload (excluding the tag header) */
+    public ByteBuffer getPayload() {
+        return payload != null ? payload.asReadOnlyBuffer() : null;
+    }
+
     public void setData(byte[] data, int length) {
+        setData(data, 0, length);
+    }
+
+    public void setData(byte[] data, int offset, int length) {
+        releaseFrame();
         this.data = data;
         this.length = length;
+        this.payload = ByteBuffer.wrap(data, offset, length);
+    }
+
+    /** Uses the remaining bytes of the specified buffer as payload; the buffer's position is not modified */
+    public void setData(ByteBuffer payload) {
+        releaseFrame();
+        this.payload = payload.slice();
+        this.data = this.payload.hasArray() ? this.payload.array() : null;
+        this.length = this.payload.remaining();
+    }
+
+    /**
+     * Uses the specified frame as payload; this packet holds a reference to it
+     * until the packet is recycled or given other data
+     */
+    public void setData(FrameBuffer frame) {
+        frame.retain();
+        releaseFrame();
+        this.frame = frame;
+        this.payload = frame.getPayload();
+        this.data = frame.array();
+        this.length = frame.getLength();
+    }
+
+    /** @return the size of the packet body (tag header and payload), in bytes */
+    public int getBodySize() {
+        return (tagHeader != null ? tagHeader.remaining() : 0) + (payload != null ? payload.remaining() : 0);
+    }
+
+    /**
+     * @return the body byte at the specified index (e.g. 0 for the FLV audio/video
+     * tag byte), or -1 if the body is shorter than that
+     */
+    protected int getBodyByte(int index) {
+        if (tagHeader != null) {
+            if (index < tagHeader.remaining()) {
+                return tagHeader.get(tagHeader.position() + index) & 0xff;
+            }
+            index -= tagHeader.remaining();
+        }
+        if (payload != null && index < payload.remaining()) {
+            return payload.get(payload.position() + index) & 0xff;
+        }
+        return -1;
+    }
+
+    /** Sets the FLV tag header sent in front of the payload */
+    public void setTagHeader(byte[] tagHeader) {
+        this.tagHeader = ByteBuffer.wrap(tagHeader);
+    }
+
+    /**
+     * Sets the FLV tag header sent in front of the payload; the buffer is
+     * referenced, so constant headers can be shared between packets
+     */
+    public void setTagHeader(ByteBuffer tagHeader) {
+        this.tagHeader = tagHeader;
+    }
+
+    /** Releases the payload and clears per-message state, so that this packet can be reused */
+    public void recycle() {
+        releaseFrame();
+        data = null;
+        length = 0;
+        payload = null;
+        tagHeader = null;
+        payloadOnly[0] = null;
+        tagHeaderAndPayload[0] = null;
+        tagHeaderAndPayload[1] = null;
+        header.resetForReuse();
+    }
+
+    private void releaseFrame() {
+        if (frame != null) {
+            frame.release();
+            frame = null;
+        }
     }
 
     @Override
     public void readBody(InputStream in) throws IOException {
-        data = new byte[this.header.getPacketLength()];
-        Util.readBytesUntilFull(in, data);
+        byte[] body = new byte[this.header.getPacketLength()];
+        Util.readBytesUntilFull(in, body);
+        tagHeader = null;
+        setData(body, body.length);
+    }
+
+    @Override
+    public void readBody(ByteBuffer in) {
+        byte[] body = new byte[this.header.getPacketLength()];
+        in.get(body);
+        tagHeader = null;
+        setData(body, body.length);
+    }
+
+    @Override
+    protected ByteBuffer[] getBodyBuffers() {
+        // Content is already in memory; hand it out as-is
+        if (tagHeader == null) {
+            payloadOnly[0] = payload;
+            return payloadOnly;
+        }
+        tagHeaderAndPayload[0] = tagHeader;
+        tagHeaderAndPayload[1] = payload;
+        return tagHeaderAndPayload;
     }
 
     /**
@@ -42,6 +164,9 @@ public abstract class ContentData extends RtmpPacket {
      */
     @Override
     public void writeBody(OutputStream out) throws IOException {
-        out.write(data, 0, length);
+        if (tagHeader != null) {
+            writeBuffer(out, tagHeader);
+        }
+        writeBuffer(out, payload);
     }
 }
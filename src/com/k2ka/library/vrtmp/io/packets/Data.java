@@ -6,6 +6,7 @@ import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * AMF Data packet
@@ -27,7 +28,7 @@ public class Data extends VariableBodyRtmpPacket {
     }
 
     public Data(String type) {
-        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_COMMAND_CHANNEL, RtmpHeader.MessageType.DATA_AMF0));
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_STREAM_CHANNEL, RtmpHeader.MessageType.DATA_AMF0));
         this.type = type;
     }
 
@@ -42,19 +43,41 @@ public class Data extends VariableBodyRtmpPacket {
     @Override
     public void readBody(InputStream in) throws IOException {
         // Read notification type
+        int bytesRead = skipFormatSelector(in);
         type = AmfString.readStringFrom(in, false);
-        int bytesRead = AmfString.sizeOf(type, false);
+        bytesRead += AmfString.sizeOf(type, false);
         // Read data body
         readVariableData(in, bytesRead);
     }
 
+    @Override
+    public void readBody(ByteBuffer in) throws IOException {
+        // Read notification type
+        ByteBuffer body = keepBody(in);
+        type = AmfString.readStringFrom(body, false);
+        // The data body is only decoded when it is accessed
+        readVariableDataLazily(body);
+    }
+
     /** 
      * This method is public for Data to make it easy to dump its contents to 
-     * another output stream
+     * another output stream; the format selector of AMF3 messages is not
+     * part of it
      */
     @Override
     public void writeBody(OutputStream out) throws IOException {
         AmfString.writeStringTo(out, type, false);
         writeVariableData(out);
     }
+
+    @Override
+    protected int getBodySize() {
+        return AmfString.sizeOf(type, false) + getVariableDataSize();
+    }
+
+    @Override
+    protected void writeBody(ByteBuffer out) {
+        AmfString.writeStringTo(out, type, false);
+        writeVariableData(out);
+    }
 }
@@ -22,7 +22,10 @@ public final class Handshake {
     /** S1 as sent by the server */
     private byte[] s1;
     private static final int PROTOCOL_VERSION = 0x03;
-    private static final int HANDSHAKE_SIZE = 1536;
+    /** Size of C1/C2/S1/S2, in bytes */
+    public static final int HANDSHAKE_SIZE = 1536;
+    /** Bytes the client sends in the handshake (C0, C1 and C2), which peers count in their acknowledgements */
+    public static final int CLIENT_HANDSHAKE_BYTES = 1 + 2 * HANDSHAKE_SIZE;
     private static final int SHA256_DIGEST_SIZE = 32;
 
     private static final int DIGEST_OFFSET_INDICATOR_POS = 772; // should either be byte 772 or byte 8
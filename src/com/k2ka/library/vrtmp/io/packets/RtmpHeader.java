@@ -1,13 +1,13 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 import com.k2ka.library.vrtmp.io.RtmpSessionInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -131,11 +131,12 @@ public class RtmpHeader {
          */
         AGGREGATE_MESSAGE(0x16);
         private byte value;
-        private static final Map<Byte, MessageType> quickLookupMap = new HashMap<Byte, MessageType>();
+        /** Indexed by the unsigned type byte, so that lookups neither box nor hash */
+        private static final MessageType[] quickLookupTable = new MessageType[256];
 
         static {
             for (MessageType messageTypId : MessageType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
+                quickLookupTable[messageTypId.getValue() & 0xff] = messageTypId;
             }
         }
 
@@ -149,8 +150,9 @@ public class RtmpHeader {
         }
 
         public static MessageType valueOf(byte messageTypeId) {
-            if (quickLookupMap.containsKey(messageTypeId)) {
-                return quickLookupMap.get(messageTypeId);
+            final MessageType messageType = quickLookupTable[messageTypeId & 0xff];
+            if (messageType != null) {
+                return messageType;
             } else {
                 throw new IllegalArgumentException("Unknown message type byte: " + Util.toHexString(messageTypeId));
             }
@@ -171,13 +173,8 @@ public class RtmpHeader {
         private byte value;
         /** The full size (in bytes) of this RTMP header (including the basic header byte) */
         private int size;
-        private static final Map<Byte, ChunkType> quickLookupMap = new HashMap<Byte, ChunkType>();
-        
-        static {
-            for (ChunkType messageTypId : ChunkType.values()) {
-                quickLookupMap.put(messageTypId.getValue(), messageTypId);
-            }
-        }
+        /** Indexed by the 2-bit chunk type */
+        private static final ChunkType[] quickLookupTable = values();
 
         private ChunkType(int byteValue, int fullHeaderSize) {
             this.value = (byte) byteValue;
@@ -194,13 +191,19 @@ public class RtmpHeader {
         }
 
         public static ChunkType valueOf(byte chunkHeaderType) {
-            if (quickLookupMap.containsKey(chunkHeaderType)) {
-                return quickLookupMap.get(chunkHeaderType);
+            if (chunkHeaderType >= 0 && chunkHeaderType < quickLookupTable.length) {
+                return quickLookupTable[chunkHeaderType];
             } else {
                 throw new IllegalArgumentException("Unknown chunk header type byte: " + Util.toHexString(chunkHeaderType));
             }
         }
     }
+    /** Largest possible encoded chunk header, in bytes */
+    public static final int MAX_HEADER_SIZE = 12;
+    /** Largest possible received chunk header: 3-byte basic header, full message header and extended timestamp */
+    public static final int MAX_RX_HEADER_SIZE = 18;
+    /** Timestamp field value announcing an extended timestamp */
+    private static final int EXTENDED_TIMESTAMP_MARKER = 0xFFFFFF;
     private ChunkType chunkType;
     private int chunkStreamId;
     private int absoluteTimestamp;
@@ -208,6 +211,8 @@ public class RtmpHeader {
     private int packetLength;
     private MessageType messageType;
     private int messageStreamId;
+    /** Whether the received header carried an extended timestamp, which type 3 headers then repeat */
+    private boolean extendedTimestamp;
 
     public RtmpHeader() {
     }
@@ -224,6 +229,126 @@ public class RtmpHeader {
         return rtmpHeader;
     }
 
+    /**
+     * Reads the chunk header at the buffer's position without allocating: the
+     * header is read into the last one received on its chunk stream, which
+     * also provides the fields a compressed header leaves out. The returned
+     * header therefore stays valid only until the next chunk on that chunk
+     * stream is read; packets that outlive that need a copy.
+     *
+     * The whole header must be in the buffer; see {@link #getHeaderSize(ByteBuffer, int, int, RtmpSessionInfo)}.
+     */
+    public static RtmpHeader readHeader(ByteBuffer in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
+        final int basicHeaderByte = in.get() & 0xff;
+        final ChunkType chunkType = ChunkType.valueOf((byte) (basicHeaderByte >>> 6));
+        int chunkStreamId = basicHeaderByte & 0x3F;
+        if (chunkStreamId == 0) {
+            // 2-byte basic header: chunk stream IDs 64-319
+            chunkStreamId = 64 + (in.get() & 0xff);
+        } else if (chunkStreamId == 1) {
+            // 3-byte basic header: chunk stream IDs 64-65599, low byte first
+            chunkStreamId = 64 + (in.get() & 0xff) + ((in.get() & 0xff) << 8);
+        }
+        final ChunkStreamInfo chunkStreamInfo = rtmpSessionInfo.getRxChunkStreamInfo(chunkStreamId);
+        RtmpHeader rtmpHeader = chunkStreamInfo.prevHeaderRx();
+        if (rtmpHeader == null) {
+            if (chunkType == ChunkType.TYPE_2_RELATIVE_TIMESTAMP_ONLY || chunkType == ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE) {
+                throw new IOException("No previous header on chunk stream " + chunkStreamId + " for chunk type " + chunkType);
+            }
+            rtmpHeader = new RtmpHeader();
+            chunkStreamInfo.setPrevHeaderRx(rtmpHeader);
+        }
+        rtmpHeader.chunkType = chunkType;
+        rtmpHeader.chunkStreamId = chunkStreamId;
+        switch (chunkType) {
+            case TYPE_0_FULL: {
+                int timestamp = BufferCodec.readUnsignedInt24(in);
+                rtmpHeader.timestampDelta = 0;
+                rtmpHeader.packetLength = BufferCodec.readUnsignedInt24(in);
+                rtmpHeader.messageType = MessageType.valueOf(in.get());
+                // Message stream ID is little-endian
+                rtmpHeader.messageStreamId = BufferCodec.readUnsignedInt32LittleEndian(in);
+                rtmpHeader.extendedTimestamp = timestamp == EXTENDED_TIMESTAMP_MARKER;
+                if (rtmpHeader.extendedTimestamp) {
+                    timestamp = BufferCodec.readUnsignedInt32(in);
+                }
+                rtmpHeader.absoluteTimestamp = timestamp;
+                break;
+            }
+            case TYPE_1_RELATIVE_LARGE: {
+                int timestampDelta = BufferCodec.readUnsignedInt24(in);
+                rtmpHeader.packetLength = BufferCodec.readUnsignedInt24(in);
+                rtmpHeader.messageType = MessageType.valueOf(in.get());
+                rtmpHeader.extendedTimestamp = timestampDelta == EXTENDED_TIMESTAMP_MARKER;
+                if (rtmpHeader.extendedTimestamp) {
+                    timestampDelta = BufferCodec.readUnsignedInt32(in);
+                }
+                rtmpHeader.timestampDelta = timestampDelta;
+                rtmpHeader.absoluteTimestamp += timestampDelta;
+                break;
+            }
+            case TYPE_2_RELATIVE_TIMESTAMP_ONLY: {
+                int timestampDelta = BufferCodec.readUnsignedInt24(in);
+                rtmpHeader.extendedTimestamp = timestampDelta == EXTENDED_TIMESTAMP_MARKER;
+                if (rtmpHeader.extendedTimestamp) {
+                    timestampDelta = BufferCodec.readUnsignedInt32(in);
+                }
+                rtmpHeader.timestampDelta = timestampDelta;
+                rtmpHeader.absoluteTimestamp += timestampDelta;
+                break;
+            }
+            case TYPE_3_RELATIVE_SINGLE_BYTE: {
+                if (rtmpHeader.extendedTimestamp) {
+                    // Repeats the extended timestamp of the previous header
+                    in.getInt();
+                }
+                // Only the first chunk of a message adds the previous delta; continuation chunks repeat the timestamp
+                if (chunkStreamInfo.getStoredPacketLength() == 0) {
+                    rtmpHeader.absoluteTimestamp += rtmpHeader.timestampDelta;
+                }
+                break;
+            }
+        }
+        return rtmpHeader;
+    }
+
+    /**
+     * Works out the size of the chunk header that starts at the specified
+     * index of the buffer from the bytes that have been received of it so far
+     *
+     * @param available the number of header bytes in the buffer
+     * @return the size of the header in bytes; if that is more than
+     * <code>available</code>, the rest of the header may still make it larger
+     */
+    public static int getHeaderSize(ByteBuffer in, int index, int available, RtmpSessionInfo rtmpSessionInfo) {
+        if (available < 1) {
+            return 1;
+        }
+        final int basicHeaderByte = in.get(index) & 0xff;
+        final ChunkType chunkType = ChunkType.valueOf((byte) (basicHeaderByte >>> 6));
+        int chunkStreamId = basicHeaderByte & 0x3F;
+        final int basicHeaderSize = chunkStreamId == 0 ? 2 : chunkStreamId == 1 ? 3 : 1;
+        final int size = basicHeaderSize + chunkType.getSize() - 1;
+        if (available < size) {
+            return size;
+        }
+        final boolean extendedTimestamp;
+        if (chunkType == ChunkType.TYPE_3_RELATIVE_SINGLE_BYTE) {
+            if (chunkStreamId == 0) {
+                chunkStreamId = 64 + (in.get(index + 1) & 0xff);
+            } else if (chunkStreamId == 1) {
+                chunkStreamId = 64 + (in.get(index + 1) & 0xff) + ((in.get(index + 2) & 0xff) << 8);
+            }
+            final RtmpHeader prevHeader = rtmpSessionInfo.getRxChunkStreamInfo(chunkStreamId).prevHeaderRx();
+            extendedTimestamp = prevHeader != null && prevHeader.extendedTimestamp;
+        } else {
+            final int timestampIndex = index + basicHeaderSize;
+            final int timestamp = ((in.get(timestampIndex) & 0xff) << 16) | ((in.get(timestampIndex + 1) & 0xff) << 8) | (in.get(timestampIndex + 2) & 0xff);
+            extendedTimestamp = timestamp == EXTENDED_TIMESTAMP_MARKER;
+        }
+        return extendedTimestamp ? size + 4 : size;
+    }
+
     private void readHeaderImpl(InputStream in, RtmpSessionInfo rtmpSessionInfo) throws IOException {
 
         int basicHeaderByte = in.read();
@@ -232,30 +357,38 @@ public class RtmpHeader {
         }
         // Read byte 0: chunk type and chunk stream ID        
         parseBasicHeader((byte) basicHeaderByte);
+        // Read the rest of the header at once
+        final byte[] bytes = new byte[chunkType.getSize() - 1];
+        int read = 0;
+        while (read < bytes.length) {
+            final int count = in.read(bytes, read, bytes.length - read);
+            if (count == -1) {
+                throw new IOException("Unexpected EOF while reading RTMP packet header");
+            }
+            read += count;
+        }
 
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header) 
                 // Read bytes 1-3: Absolute timestamp
-                absoluteTimestamp = Util.readUnsignedInt24(in);
+                absoluteTimestamp = BufferCodec.readUnsignedInt24(bytes, 0);
                 timestampDelta = 0;
                 // Read bytes 4-6: Packet length
-                packetLength = Util.readUnsignedInt24(in);
+                packetLength = BufferCodec.readUnsignedInt24(bytes, 3);
                 // Read byte 7: Message type ID
-                messageType = MessageType.valueOf((byte) in.read());
+                messageType = MessageType.valueOf(bytes[6]);
                 // Read bytes 8-11: Message stream ID (apparently little-endian order)
-                byte[] messageStreamIdBytes = new byte[4];
-                Util.readBytesUntilFull(in, messageStreamIdBytes);
-                messageStreamId = Util.toUnsignedInt32LittleEndian(messageStreamIdBytes);
+                messageStreamId = BufferCodec.readUnsignedInt32LittleEndian(bytes, 7);
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message stream ID (4 last bytes)
                 // Read bytes 1-3: Timestamp delta
-                timestampDelta = Util.readUnsignedInt24(in);
+                timestampDelta = BufferCodec.readUnsignedInt24(bytes, 0);
                 // Read bytes 4-6: Packet length
-                packetLength = Util.readUnsignedInt24(in);
+                packetLength = BufferCodec.readUnsignedInt24(bytes, 3);
                 // Read byte 7: Message type ID
-                messageType = MessageType.valueOf((byte) in.read());
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
+                messageType = MessageType.valueOf(bytes[6]);
+                RtmpHeader prevHeader = rtmpSessionInfo.getRxChunkStreamInfo(chunkStreamId).prevHeaderRx();
                 try {
                     messageStreamId = prevHeader.messageStreamId;
                     absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
@@ -267,8 +400,8 @@ public class RtmpHeader {
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
                 // Read bytes 1-3: Timestamp delta
-                timestampDelta = Util.readUnsignedInt24(in);
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
+                timestampDelta = BufferCodec.readUnsignedInt24(bytes, 0);
+                RtmpHeader prevHeader = rtmpSessionInfo.getRxChunkStreamInfo(chunkStreamId).prevHeaderRx();
                 packetLength = prevHeader.packetLength;
                 messageType = prevHeader.messageType;
                 messageStreamId = prevHeader.messageStreamId;
@@ -276,7 +409,7 @@ public class RtmpHeader {
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only 
-                RtmpHeader prevHeader = rtmpSessionInfo.getChunkStreamInfo(chunkStreamId).prevHeaderRx();
+                RtmpHeader prevHeader = rtmpSessionInfo.getRxChunkStreamInfo(chunkStreamId).prevHeaderRx();
                 timestampDelta = prevHeader.timestampDelta;
                 absoluteTimestamp = prevHeader.absoluteTimestamp + timestampDelta;
                 packetLength = prevHeader.packetLength;
@@ -290,25 +423,32 @@ public class RtmpHeader {
     }
 
     public void writeTo(OutputStream out, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        // Write basic header byte        
-        out.write(((byte) (chunkType.getValue() << 6) | chunkStreamId));
+        // Encoded as a whole, so that the stream sees a single write
+        final ByteBuffer bytes = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        writeTo(bytes, chunkStreamInfo);
+        out.write(bytes.array(), 0, bytes.position());
+    }
+
+    public void writeTo(ByteBuffer out, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        // Write basic header byte
+        out.put((byte) ((chunkType.getValue() << 6) | chunkStreamId));
         switch (chunkType) {
             case TYPE_0_FULL: { //  b00 = 12 byte header (full header)
                 chunkStreamInfo.markRealAbsoluteTimestampTx();
-                Util.writeUnsignedInt24(out, absoluteTimestamp);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
-                Util.writeUnsignedInt32LittleEndian(out, messageStreamId);
+                BufferCodec.writeUnsignedInt24(out, absoluteTimestamp);
+                BufferCodec.writeUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
+                BufferCodec.writeUnsignedInt32LittleEndian(out, messageStreamId);
                 break;
             }
             case TYPE_1_RELATIVE_LARGE: { // b01 = 8 bytes - like type 0. not including message ID (4 last bytes)
-                Util.writeUnsignedInt24(out, absoluteTimestamp);
-                Util.writeUnsignedInt24(out, packetLength);
-                out.write(messageType.getValue());
+                BufferCodec.writeUnsignedInt24(out, timestampDelta);
+                BufferCodec.writeUnsignedInt24(out, packetLength);
+                out.put(messageType.getValue());
                 break;
             }
             case TYPE_2_RELATIVE_TIMESTAMP_ONLY: { // b10 = 4 bytes - Basic Header and timestamp (3 bytes) are included
-                Util.writeUnsignedInt24(out, absoluteTimestamp);
+                BufferCodec.writeUnsignedInt24(out, timestampDelta);
                 break;
             }
             case TYPE_3_RELATIVE_SINGLE_BYTE: { // b11 = 1 byte: basic header only
@@ -383,11 +523,35 @@ public class RtmpHeader {
         this.packetLength = packetLength;
     }
 
+    /** Copies all fields of the specified header into this one */
+    public void copyFrom(RtmpHeader other) {
+        chunkType = other.chunkType;
+        chunkStreamId = other.chunkStreamId;
+        absoluteTimestamp = other.absoluteTimestamp;
+        timestampDelta = other.timestampDelta;
+        packetLength = other.packetLength;
+        messageType = other.messageType;
+        messageStreamId = other.messageStreamId;
+        extendedTimestamp = other.extendedTimestamp;
+    }
+
+    /** Clears per-message state so that the header can be reused for another message */
+    void resetForReuse() {
+        absoluteTimestamp = 0;
+        timestampDelta = -1;
+        packetLength = 0;
+    }
+
     public void writeAggregateHeaderByte(OutputStream out) throws IOException {
         // Aggregate header 0x11 : 11.. ....
         out.write(0xC0 | chunkStreamId);
     }
 
+    public void writeAggregateHeaderByte(ByteBuffer out) {
+        // Aggregate header 0x11 : 11.. ....
+        out.put((byte) (0xC0 | chunkStreamId));
+    }
+
     public static void writeAggregateHeaderByte(OutputStream out, int chunkStreamId) throws IOException {
         // Aggregate header 0x11 : 11.. ....
         out.write(0xC0 | chunkStreamId);
@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.io.packets;
 
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
+import com.k2ka.library.vrtmp.io.ChunkWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -21,27 +23,102 @@ public abstract class RtmpPacket {
     public RtmpHeader getHeader() {
         return header;
     }
-    
+
     public abstract void readBody(InputStream in) throws IOException;
-    
+
+    /**
+     * Reads the packet body from the buffer's position; the buffer's limit is
+     * the end of the body
+     */
+    public abstract void readBody(ByteBuffer in) throws IOException;
+
     protected abstract void writeBody(OutputStream out) throws IOException;
-           
+
+    /**
+     * @return this packet's body as a sequence of buffers, in wire order. The
+     * default implementation serializes the body with {@link #writeBody(OutputStream)};
+     * packets that already hold their body in memory should return it directly.
+     * Callers must not modify the returned buffers or their positions.
+     */
+    protected ByteBuffer[] getBodyBuffers() throws IOException {
+        BodyOutputStream baos = new BodyOutputStream();
+        writeBody(baos);
+        return new ByteBuffer[]{baos.toByteBuffer()};
+    }
+
+    public void writeTo(ChunkWriter writer, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        appendTo(writer, chunkSize, chunkStreamInfo);
+        writer.flush();
+    }
+
+    /**
+     * Queues this packet on the specified writer without flushing it; the packet
+     * must stay untouched until the writer has been flushed
+     */
+    public void appendTo(ChunkWriter writer, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        writer.append(header, getBodyBuffers(), chunkSize, chunkStreamInfo);
+    }
+
+    /**
+     * Starts queueing this packet on the specified writer chunk by chunk; see
+     * {@link ChunkWriter#appendChunk(ChunkWriter.MessageCursor, int)}
+     */
+    public void beginAppend(ChunkWriter writer, ChunkWriter.MessageCursor cursor, final ChunkStreamInfo chunkStreamInfo) throws IOException {
+        writer.beginMessage(cursor, header, getBodyBuffers(), chunkStreamInfo);
+    }
+
     public void writeTo(OutputStream out, final int chunkSize, final ChunkStreamInfo chunkStreamInfo) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeBody(baos);        
-        byte[] body = baos.toByteArray();        
-        header.setPacketLength(body.length);
+        ByteBuffer[] body = getBodyBuffers();
+        int bodyLength = 0;
+        for (ByteBuffer buffer : body) {
+            bodyLength += buffer.remaining();
+        }
+        header.setPacketLength(bodyLength);
+        chunkStreamInfo.compressHeaderTx(header);
         // Write header for first chunk
         header.writeTo(out, chunkStreamInfo);
-        int remainingBytes = body.length;
-        int pos = 0;
-        while (remainingBytes > chunkSize) {
-            out.write(body, pos, chunkSize);
-            remainingBytes -= chunkSize;
-            pos += chunkSize;
-            header.writeAggregateHeaderByte(out);
+        int chunkRemaining = chunkSize;
+        for (ByteBuffer buffer : body) {
+            int pos = buffer.position();
+            while (pos < buffer.limit()) {
+                if (chunkRemaining == 0) {
+                    header.writeAggregateHeaderByte(out);
+                    chunkRemaining = chunkSize;
+                }
+                final int length = Math.min(chunkRemaining, buffer.limit() - pos);
+                if (buffer.hasArray()) {
+                    out.write(buffer.array(), buffer.arrayOffset() + pos, length);
+                } else {
+                    // Direct buffers have to go through a heap copy for stream output
+                    byte[] chunk = new byte[length];
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(pos);
+                    slice.get(chunk);
+                    out.write(chunk);
+                }
+                pos += length;
+                chunkRemaining -= length;
+            }
         }
-        out.write(body, pos, remainingBytes);
         out.flush();
     }
+
+    /** Writes the buffer's remaining bytes, leaving its position untouched */
+    protected static void writeBuffer(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            // Direct and read-only buffers have to go through a heap copy for stream output
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /** Gives access to the serialized body without the copy made by <code>toByteArray()</code> */
+    private static final class BodyOutputStream extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
 }
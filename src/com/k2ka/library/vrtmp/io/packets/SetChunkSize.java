@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A "Set chunk size" RTMP message, received on chunk stream ID 2 (control channel)
@@ -38,6 +40,11 @@ public class SetChunkSize extends RtmpPacket {
         chunkSize = Util.readUnsignedInt32(in);
     }
 
+    @Override
+    public void readBody(ByteBuffer in) {
+        chunkSize = BufferCodec.readUnsignedInt32(in);
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {
         Util.writeUnsignedInt32(out, chunkSize);
@@ -1,11 +1,13 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -91,6 +93,12 @@ public class SetPeerBandwidth extends RtmpPacket {
         acknowledgementWindowSize = Util.readUnsignedInt32(in);
         limitType = LimitType.valueOf(in.read());
     }
+
+    @Override
+    public void readBody(ByteBuffer in) {
+        acknowledgementWindowSize = BufferCodec.readUnsignedInt32(in);
+        limitType = LimitType.valueOf(in.get() & 0xff);
+    }
     
     @Override
     protected void writeBody(OutputStream out) throws IOException {
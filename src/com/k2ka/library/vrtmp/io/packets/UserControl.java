@@ -1,11 +1,13 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -224,6 +226,18 @@ public class UserControl extends RtmpPacket {
         assert header.getPacketLength() == bytesRead;
     }
 
+    @Override
+    public void readBody(ByteBuffer in) {
+        // Bytes 0-1: first parameter: ping type (mandatory)
+        type = Type.valueOf(BufferCodec.readUnsignedInt16(in));
+        // Event data (1 for most types, 2 for SET_BUFFER_LENGTH)
+        if (type == Type.SET_BUFFER_LENGTH) {
+            setEventData(BufferCodec.readUnsignedInt32(in), BufferCodec.readUnsignedInt32(in));
+        } else {
+            setEventData(BufferCodec.readUnsignedInt32(in));
+        }
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {
         // Write the user control message type
@@ -1,14 +1,21 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.amf.Amf3Decoder;
+import com.k2ka.library.vrtmp.amf.Amf3Encoder;
+import com.k2ka.library.vrtmp.amf.AmfArray;
 import com.k2ka.library.vrtmp.amf.AmfBoolean;
 import com.k2ka.library.vrtmp.amf.AmfData;
 import com.k2ka.library.vrtmp.amf.AmfDecoder;
 import com.k2ka.library.vrtmp.amf.AmfNull;
 import com.k2ka.library.vrtmp.amf.AmfNumber;
+import com.k2ka.library.vrtmp.amf.AmfObject;
 import com.k2ka.library.vrtmp.amf.AmfString;
+import com.k2ka.library.vrtmp.amf.AmfType;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,20 +26,65 @@ import java.util.List;
  * Examples of this type of packet are Command and Data; this abstract class
  * exists mostly for code re-use.
  * 
+ * The AMF3 message types carry a format selector byte ahead of the body, which
+ * is otherwise AMF0 encoded, with values that may switch to AMF3.
+ * 
  * @author k2ka
  */
 public abstract class VariableBodyRtmpPacket extends RtmpPacket {
     private final static String TAG = "VariableBodyRtmpPacket";
     protected List<AmfData> data;
+    /**
+     * The received body, in the buffer it was decoded from, or <code>null</code>
+     * if this packet was not received; see {@link #detachBody()}
+     */
+    private ByteBuffer encodedBody;
+    /** The AMF values of the received body, after its fixed fields */
+    private ByteBuffer encodedData;
+    /** Received AMF values that have not been decoded yet, or <code>null</code> once they all are */
+    private ByteBuffer undecodedData;
+    /** Reference tables of the received AMF3 values, which are decoded in order; AMF3 messages only */
+    private Amf3Decoder amf3Decoder;
+    /** Whether the values may no longer match {@link #encodedData}, once handed out or changed */
+    private boolean dataAccessed;
 
     public VariableBodyRtmpPacket(RtmpHeader header) {
         super(header);
     }
 
+    /** @return whether this packet uses one of the AMF3 message types */
+    public boolean isAmf3() {
+        final RtmpHeader.MessageType messageType = header.getMessageType();
+        return messageType == RtmpHeader.MessageType.COMMAND_AMF3 || messageType == RtmpHeader.MessageType.DATA_AMF3;
+    }
+
+    /** Decodes the values of a received packet that were not accessed yet */
     public List<AmfData> getData() {
+        decodeData(Integer.MAX_VALUE);
+        dataAccessed = true;
         return data;
     }
 
+    /**
+     * Decodes the values of a received packet up to the specified one only
+     *
+     * @return the value at the specified index, or <code>null</code> if there
+     * are not that many values
+     */
+    public AmfData getData(int index) {
+        decodeData(index + 1);
+        dataAccessed = true;
+        return data != null && index < data.size() ? data.get(index) : null;
+    }
+
+    /**
+     * @return a read-only view of the body as it was received, or
+     * <code>null</code> if this packet was not received
+     */
+    public ByteBuffer getEncodedBody() {
+        return encodedBody == null ? null : encodedBody.asReadOnlyBuffer();
+    }
+
     public void addData(String string) {
         addData(new AmfString(string));
     }
@@ -46,6 +98,12 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
     }
 
     public void addData(AmfData dataItem) {
+        decodeData(Integer.MAX_VALUE);
+        dataAccessed = true;
+        appendData(dataItem);
+    }
+
+    private void appendData(AmfData dataItem) {
         if (data == null) {
             this.data = new ArrayList<AmfData>();
         }
@@ -63,8 +121,140 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
         } while (bytesAlreadyRead < header.getPacketLength());
     }
 
-    protected void writeVariableData(final OutputStream out) throws IOException {
-        if (data != null) {
+    /** Reads AMF values up to the buffer's limit, which must be the end of the packet body */
+    protected void readVariableData(final ByteBuffer in) throws IOException {
+        final Amf3Decoder amf3Decoder = isAmf3() ? new Amf3Decoder() : null;
+        while (in.hasRemaining()) {
+            addData(AmfDecoder.readFrom(in, amf3Decoder));
+        }
+    }
+
+    /**
+     * Keeps the received body, from the buffer's position up to its limit,
+     * without copying it
+     *
+     * @return the body after the format selector of an AMF3 message, positioned at its start
+     */
+    protected ByteBuffer keepBody(final ByteBuffer in) {
+        encodedBody = in.slice();
+        in.position(in.limit());
+        final ByteBuffer values = encodedBody.duplicate();
+        if (isAmf3() && values.hasRemaining()) {
+            values.get(); // Format selector
+        }
+        return values;
+    }
+
+    /** @return the number of bytes read: the format selector of an AMF3 message, if any */
+    protected int skipFormatSelector(final InputStream in) throws IOException {
+        if (!isAmf3()) {
+            return 0;
+        }
+        in.read();
+        return 1;
+    }
+
+    /**
+     * Keeps the AMF values from the position of the kept body up to its limit
+     * without decoding, or even walking, them: they are decoded on first
+     * access, and written back as received as long as they are not accessed.
+     * Malformed values are only noticed once accessed.
+     */
+    protected void readVariableDataLazily(final ByteBuffer body) {
+        encodedData = body.slice();
+        undecodedData = encodedData.duplicate();
+        amf3Decoder = isAmf3() ? new Amf3Decoder() : null;
+    }
+
+    /**
+     * Copies the received body out of the buffer it was decoded from. The
+     * body of a received packet, and the values decoded from it, reference
+     * the decoder's buffers, which are reused once the packet handler
+     * returns: a handler that keeps the packet longer has to call this before
+     * accessing its values.
+     */
+    public void detachBody() {
+        if (encodedBody == null || encodedData == null) {
+            return;
+        }
+        final int dataOffset = encodedBody.remaining() - encodedData.remaining();
+        ByteBuffer copy = ByteBuffer.allocate(encodedBody.remaining());
+        copy.put(encodedBody.duplicate());
+        copy.position(dataOffset);
+        final ByteBuffer values = copy.slice();
+        copy.rewind();
+        if (undecodedData != null) {
+            final ByteBuffer undecoded = values.duplicate();
+            undecoded.position(undecodedData.position());
+            undecodedData = undecoded;
+        }
+        encodedBody = copy;
+        encodedData = values;
+    }
+
+    /** Decodes the received values until there are the specified number of them */
+    private void decodeData(int count) {
+        if (undecodedData == null) {
+            return;
+        }
+        try {
+            while (undecodedData.hasRemaining() && (data == null || data.size() < count)) {
+                appendData(AmfDecoder.readLazilyFrom(undecodedData, amf3Decoder));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Malformed AMF data in the received body", e);
+        }
+        if (!undecodedData.hasRemaining()) {
+            undecodedData = null;
+            amf3Decoder = null;
+        }
+    }
+
+    /**
+     * Encodes the body with the exact size computed by {@link #getBodySize()},
+     * straight into the buffer that is handed to the chunk writer
+     */
+    @Override
+    protected ByteBuffer[] getBodyBuffers() throws IOException {
+        if (isAmf3()) {
+            // AMF3 sizes depend on the reference tables, so the body is encoded through a stream
+            ByteArrayOutputStream amf3Body = new ByteArrayOutputStream(256);
+            amf3Body.write(0); // Format selector
+            writeBody(amf3Body);
+            return new ByteBuffer[]{ByteBuffer.wrap(amf3Body.toByteArray())};
+        }
+        ByteBuffer body = ByteBuffer.allocate(getBodySize());
+        writeBody(body);
+        body.flip();
+        return new ByteBuffer[]{body};
+    }
+
+    /** @return the size of the encoded body, in bytes */
+    protected abstract int getBodySize();
+
+    /** Encodes the body at the buffer's position; the buffer must have {@link #getBodySize()} bytes remaining */
+    protected abstract void writeBody(ByteBuffer out);
+
+    /** @return the size of the AMF values written by {@link #writeVariableData(ByteBuffer)} */
+    protected int getVariableDataSize() {
+        if (encodedData != null && !dataAccessed) {
+            return encodedData.remaining();
+        }
+        decodeData(Integer.MAX_VALUE);
+        if (data == null) {
+            return 1; // a null
+        }
+        int size = 0;
+        for (AmfData dataItem : data) {
+            size += dataItem.getSize();
+        }
+        return size;
+    }
+
+    protected void writeVariableData(final ByteBuffer out) {
+        if (encodedData != null && !dataAccessed) {
+            out.put(encodedData.duplicate());
+        } else if (getData() != null) {
             for (AmfData dataItem : data) {
                 dataItem.writeTo(out);
             }
@@ -73,4 +263,32 @@ public abstract class VariableBodyRtmpPacket extends RtmpPacket {
             AmfNull.writeNullTo(out);
         }
     }
+
+    protected void writeVariableData(final OutputStream out) throws IOException {
+        if (encodedData != null && !dataAccessed) {
+            writeBuffer(out, encodedData);
+        } else if (getData() != null) {
+            // The AMF3 values of the body share one set of reference tables
+            final Amf3Encoder amf3Encoder = isAmf3() ? new Amf3Encoder(out) : null;
+            for (AmfData dataItem : data) {
+                if (amf3Encoder != null && isComplex(dataItem)) {
+                    out.write(AmfType.AVMPLUS_OBJECT.getValue());
+                    amf3Encoder.writeValue(dataItem);
+                } else {
+                    dataItem.writeTo(out);
+                }
+            }
+        } else {
+            // Write a null
+            AmfNull.writeNullTo(out);
+        }
+    }
+
+    /**
+     * @return whether the value is written as AMF3 in an AMF3 message; handler
+     * names and other primitives stay AMF0, as servers expect
+     */
+    private static boolean isComplex(AmfData dataItem) {
+        return dataItem instanceof AmfObject || dataItem instanceof AmfArray;
+    }
 }
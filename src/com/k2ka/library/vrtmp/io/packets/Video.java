@@ -10,6 +10,27 @@ import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 public class Video extends ContentData {
 
     public Video() {
-        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_STREAM_CHANNEL, RtmpHeader.MessageType.VIDEO));
+        super(new RtmpHeader(RtmpHeader.ChunkType.TYPE_0_FULL, ChunkStreamInfo.RTMP_VIDEO_CHANNEL, RtmpHeader.MessageType.VIDEO));
+    }
+
+    public Video(RtmpHeader header) {
+        super(header);
+    }
+
+    /** FLV video codec id of H.264/AVC */
+    private static final int CODEC_AVC = 7;
+    /** AVC packet type of the decoder configuration record */
+    private static final int AVC_SEQUENCE_HEADER = 0;
+
+    /** @return <code>true</code> if the FLV frame type of this packet is "key frame" (this includes AVC sequence headers) */
+    public boolean isKeyFrame() {
+        final int tagByte = getBodyByte(0);
+        return tagByte != -1 && (tagByte >>> 4) == 1;
+    }
+
+    /** @return <code>true</code> if this packet carries the AVC decoder configuration (SPS/PPS) rather than a frame */
+    public boolean isSequenceHeader() {
+        final int tagByte = getBodyByte(0);
+        return tagByte != -1 && (tagByte & 0x0f) == CODEC_AVC && getBodyByte(1) == AVC_SEQUENCE_HEADER;
     }
 }
@@ -1,10 +1,12 @@
 package com.k2ka.library.vrtmp.io.packets;
 
+import com.k2ka.library.vrtmp.utils.BufferCodec;
 import com.k2ka.library.vrtmp.utils.Util;
 import com.k2ka.library.vrtmp.io.ChunkStreamInfo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Window Acknowledgement Size
@@ -40,6 +42,11 @@ public class WindowAckSize extends RtmpPacket {
         acknowledgementWindowSize = Util.readUnsignedInt32(in);
     }
 
+    @Override
+    public void readBody(ByteBuffer in) {
+        acknowledgementWindowSize = BufferCodec.readUnsignedInt32(in);
+    }
+
     @Override
     protected void writeBody(OutputStream out) throws IOException {        
         Util.writeUnsignedInt32(out, acknowledgementWindowSize);
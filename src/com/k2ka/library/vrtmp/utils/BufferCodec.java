@@ -0,0 +1,187 @@
+package com.k2ka.library.vrtmp.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads and writes the fixed-size integers and doubles of the RTMP and AMF
+ * formats on buffers. The ByteBuffer methods work at the buffer's position
+ * and advance it, whatever byte order the buffer is set to; the byte array
+ * methods work at the specified offset. Values are read and written whole,
+ * rather than one stream call per byte.
+ *
+ * @author k2ka
+ */
+public final class BufferCodec {
+
+    private BufferCodec() {
+    }
+
+    public static int readUnsignedInt16(ByteBuffer in) {
+        final short value = in.getShort();
+        return (in.order() == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value)) & 0xffff;
+    }
+
+    public static void writeUnsignedInt16(ByteBuffer out, int value) {
+        out.putShort(out.order() == ByteOrder.BIG_ENDIAN ? (short) value : Short.reverseBytes((short) value));
+    }
+
+    public static int readUnsignedInt16LittleEndian(ByteBuffer in) {
+        final short value = in.getShort();
+        return (in.order() == ByteOrder.LITTLE_ENDIAN ? value : Short.reverseBytes(value)) & 0xffff;
+    }
+
+    public static void writeUnsignedInt16LittleEndian(ByteBuffer out, int value) {
+        out.putShort(out.order() == ByteOrder.LITTLE_ENDIAN ? (short) value : Short.reverseBytes((short) value));
+    }
+
+    public static int readUnsignedInt24(ByteBuffer in) {
+        return ((in.get() & 0xff) << 16) | readUnsignedInt16(in);
+    }
+
+    public static void writeUnsignedInt24(ByteBuffer out, int value) {
+        out.put((byte) (value >>> 16));
+        writeUnsignedInt16(out, value);
+    }
+
+    public static int readUnsignedInt24LittleEndian(ByteBuffer in) {
+        return readUnsignedInt16LittleEndian(in) | ((in.get() & 0xff) << 16);
+    }
+
+    public static void writeUnsignedInt24LittleEndian(ByteBuffer out, int value) {
+        writeUnsignedInt16LittleEndian(out, value);
+        out.put((byte) (value >>> 16));
+    }
+
+    public static int readUnsignedInt32(ByteBuffer in) {
+        final int value = in.getInt();
+        return in.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    public static void writeUnsignedInt32(ByteBuffer out, int value) {
+        out.putInt(out.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value));
+    }
+
+    public static int readUnsignedInt32LittleEndian(ByteBuffer in) {
+        final int value = in.getInt();
+        return in.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    public static void writeUnsignedInt32LittleEndian(ByteBuffer out, int value) {
+        out.putInt(out.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value));
+    }
+
+    public static long readInt64(ByteBuffer in) {
+        final long value = in.getLong();
+        return in.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    public static void writeInt64(ByteBuffer out, long value) {
+        out.putLong(out.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value));
+    }
+
+    public static long readInt64LittleEndian(ByteBuffer in) {
+        final long value = in.getLong();
+        return in.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    public static void writeInt64LittleEndian(ByteBuffer out, long value) {
+        out.putLong(out.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value));
+    }
+
+    /** Reads a big-endian IEEE 754 double, as used by AMF numbers */
+    public static double readDouble(ByteBuffer in) {
+        return Double.longBitsToDouble(readInt64(in));
+    }
+
+    /** Writes a big-endian IEEE 754 double, as used by AMF numbers */
+    public static void writeDouble(ByteBuffer out, double value) {
+        writeInt64(out, Double.doubleToRawLongBits(value));
+    }
+
+    public static int readUnsignedInt16(byte[] in, int offset) {
+        return ((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff);
+    }
+
+    public static void writeUnsignedInt16(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 8);
+        out[offset + 1] = (byte) value;
+    }
+
+    public static int readUnsignedInt16LittleEndian(byte[] in, int offset) {
+        return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8);
+    }
+
+    public static void writeUnsignedInt16LittleEndian(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+    }
+
+    public static int readUnsignedInt24(byte[] in, int offset) {
+        return ((in[offset] & 0xff) << 16) | ((in[offset + 1] & 0xff) << 8) | (in[offset + 2] & 0xff);
+    }
+
+    public static void writeUnsignedInt24(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 16);
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) value;
+    }
+
+    public static int readUnsignedInt24LittleEndian(byte[] in, int offset) {
+        return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8) | ((in[offset + 2] & 0xff) << 16);
+    }
+
+    public static void writeUnsignedInt24LittleEndian(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+    }
+
+    public static int readUnsignedInt32(byte[] in, int offset) {
+        return ((in[offset] & 0xff) << 24) | ((in[offset + 1] & 0xff) << 16) | ((in[offset + 2] & 0xff) << 8) | (in[offset + 3] & 0xff);
+    }
+
+    public static void writeUnsignedInt32(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    public static int readUnsignedInt32LittleEndian(byte[] in, int offset) {
+        return (in[offset] & 0xff) | ((in[offset + 1] & 0xff) << 8) | ((in[offset + 2] & 0xff) << 16) | ((in[offset + 3] & 0xff) << 24);
+    }
+
+    public static void writeUnsignedInt32LittleEndian(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+
+    public static long readInt64(byte[] in, int offset) {
+        return ((long) readUnsignedInt32(in, offset) << 32) | (readUnsignedInt32(in, offset + 4) & 0xffffffffL);
+    }
+
+    public static void writeInt64(byte[] out, int offset, long value) {
+        writeUnsignedInt32(out, offset, (int) (value >>> 32));
+        writeUnsignedInt32(out, offset + 4, (int) value);
+    }
+
+    public static long readInt64LittleEndian(byte[] in, int offset) {
+        return (readUnsignedInt32LittleEndian(in, offset) & 0xffffffffL) | ((long) readUnsignedInt32LittleEndian(in, offset + 4) << 32);
+    }
+
+    public static void writeInt64LittleEndian(byte[] out, int offset, long value) {
+        writeUnsignedInt32LittleEndian(out, offset, (int) value);
+        writeUnsignedInt32LittleEndian(out, offset + 4, (int) (value >>> 32));
+    }
+
+    public static double readDouble(byte[] in, int offset) {
+        return Double.longBitsToDouble(readInt64(in, offset));
+    }
+
+    public static void writeDouble(byte[] out, int offset, double value) {
+        writeInt64(out, offset, Double.doubleToRawLongBits(value));
+    }
+}